@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2010-2014  Eric Hansander
+ *
+ *  This file is part of Retro Timer.
+ *
+ *  Retro Timer is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Retro Timer is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Retro Timer.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.erichansander.retrotimer;
+
+/**
+ * Stand-in for the scale path TimerView builds, for the benchmarks
+ *
+ * Approximates the same elliptic arc with a polyline, and looks up distances
+ * along it with a binary search over the segment lengths, much like
+ * PathMeasure does.
+ */
+class EllipseScalePath implements ScalePath {
+    private static final int SEGMENTS = 64;
+
+    private final float[] mX = new float[SEGMENTS + 1];
+    private final float[] mY = new float[SEGMENTS + 1];
+    // Distance along the path to the start of each point
+    private final float[] mDist = new float[SEGMENTS + 1];
+
+    /** The scale path of a TimerView w by h pixels */
+    public EllipseScalePath(float w, float h) {
+        float middle = h * 0.47f;
+        float sidePadding = w * 0.02f;
+        float ovalHeight = h * 0.14f;
+
+        float cx = w / 2;
+        float rx = w / 2 - sidePadding;
+        float ry = ovalHeight;
+
+        // addArc(oval, 150, -120), in degrees clockwise from the x axis
+        for (int i = 0; i <= SEGMENTS; i++) {
+            double angle = Math.toRadians(150 - 120.0 * i / SEGMENTS);
+            mX[i] = (float) (cx + rx * Math.cos(angle));
+            mY[i] = (float) (middle + ry * Math.sin(angle));
+            if (i > 0) {
+                mDist[i] = mDist[i - 1]
+                        + (float) Math.hypot(mX[i] - mX[i - 1], mY[i]
+                                - mY[i - 1]);
+            }
+        }
+    }
+
+    public float getLength() {
+        return mDist[SEGMENTS];
+    }
+
+    public void getPosTan(float distance, float[] pos, float[] tan) {
+        if (distance < 0) {
+            distance = 0;
+        } else if (distance > mDist[SEGMENTS]) {
+            distance = mDist[SEGMENTS];
+        }
+
+        int lo = 0;
+        int hi = SEGMENTS;
+        while (hi - lo > 1) {
+            int mid = (lo + hi) >>> 1;
+            if (mDist[mid] <= distance) {
+                lo = mid;
+            } else {
+                hi = mid;
+            }
+        }
+
+        float len = mDist[hi] - mDist[lo];
+        float t = len > 0 ? (distance - mDist[lo]) / len : 0;
+        float dx = mX[hi] - mX[lo];
+        float dy = mY[hi] - mY[lo];
+        pos[0] = mX[lo] + t * dx;
+        pos[1] = mY[lo] + t * dy;
+        tan[0] = len > 0 ? dx / len : 1;
+        tan[1] = len > 0 ? dy / len : 0;
+    }
+}
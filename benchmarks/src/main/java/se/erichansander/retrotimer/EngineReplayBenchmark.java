@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2010-2014  Eric Hansander
+ *
+ *  This file is part of Retro Timer.
+ *
+ *  Retro Timer is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Retro Timer is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Retro Timer.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.erichansander.retrotimer;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Times replays of random sequences of set, cancel, dismiss, adding and
+ * cancelling other timers, and waiting, against TimerEngine on virtual time.
+ * 
+ * Only for timing; EngineReplayTest replays the same kind of sequences and
+ * checks the engine as it goes.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class EngineReplayBenchmark {
+    private static final long MINUTE = 60000;
+
+    /** Number of user actions in each replayed sequence */
+    @Param({ "1000" })
+    public int steps;
+
+    private long mSeed = 0;
+
+    @Benchmark
+    public int replay() {
+        Random random = new Random(mSeed++);
+        VirtualScheduler vs = new VirtualScheduler(1400000000000L);
+        TimerEngine engine = vs.getEngine();
+        ArrayList<Integer> timers = new ArrayList<Integer>();
+
+        for (int i = 0; i < steps; i++) {
+            switch (random.nextInt(8)) {
+            case 0:
+            case 1:
+                engine.setAlarmDelayed((1 + random.nextInt(
+                        DialMath.MAX_MINUTES)) * MINUTE);
+                break;
+            case 2:
+                engine.cancelAlarm();
+                break;
+            case 3:
+                engine.dismissAlarm();
+                break;
+            case 4:
+                timers.add(engine.addTimer(vs.currentTimeMillis()
+                        + random.nextInt(120) * MINUTE, 15000));
+                break;
+            case 5:
+                if (!timers.isEmpty()) {
+                    engine.cancelTimer(timers.remove(random.nextInt(timers
+                            .size())));
+                }
+                break;
+            default:
+                vs.advanceBy(random.nextInt(30) * MINUTE);
+                break;
+            }
+        }
+
+        // Let whatever is left go off
+        vs.advanceBy(121 * MINUTE);
+        return vs.getTriggered();
+    }
+}
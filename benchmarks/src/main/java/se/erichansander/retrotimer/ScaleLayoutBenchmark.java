@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2010-2014  Eric Hansander
+ *
+ *  This file is part of Retro Timer.
+ *
+ *  Retro Timer is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Retro Timer is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Retro Timer.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.erichansander.retrotimer;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Laying out the letters of the scale along the arc: once per size change,
+ * and once per frame while the scale turns in smooth dial mode
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ScaleLayoutBenchmark {
+
+    /** View width in pixels, for mdpi to xxhdpi phones */
+    @Param({ "320", "720", "1080" })
+    public int width;
+
+    private float mHeight;
+    private float mDensity;
+    private float mLetterWidth;
+
+    private EllipseScalePath mPath;
+    private float mStartOffset;
+    private float[] mX;
+    private float[] mY;
+    private float[] mAngle;
+    private final float[] mPos = new float[2];
+    private final float[] mTan = new float[2];
+    private float mShift = 0;
+
+    @Setup
+    public void setup() {
+        // Like a TimerView filling the width of a 360 dp wide phone, with
+        // 32 dp monospace letters
+        mHeight = width * 1.3f;
+        mDensity = width / 360f;
+        mLetterWidth = 19.2f * mDensity;
+
+        mPath = new EllipseScalePath(width, mHeight);
+        int letters = DialMath.lettersInScale(mPath.getLength(), mLetterWidth);
+        mStartOffset = DialMath.scaleStartOffset(mPath.getLength(),
+                mLetterWidth, letters, mDensity);
+        mX = new float[letters];
+        mY = new float[letters];
+        mAngle = new float[letters];
+    }
+
+    /** The layout math of TimerView.onSizeChanged */
+    @Benchmark
+    public float[] sizeChanged() {
+        EllipseScalePath path = new EllipseScalePath(width, mHeight);
+        float pathLen = path.getLength();
+        int letters = DialMath.lettersInScale(pathLen, mLetterWidth);
+        float startOffset = DialMath.scaleStartOffset(pathLen, mLetterWidth,
+                letters, mDensity);
+
+        float[] x = new float[letters];
+        float[] y = new float[letters];
+        float[] angle = new float[letters];
+        DialMath.layoutLetters(path, startOffset, mLetterWidth, x, y, angle,
+                mPos, mTan);
+        return angle;
+    }
+
+    /** Moving the letters a bit, as done for each frame in smooth mode */
+    @Benchmark
+    public float[] relayout() {
+        mShift = mShift > mLetterWidth ? 0 : mShift + 0.5f;
+        DialMath.layoutLetters(mPath, mStartOffset + mShift, mLetterWidth, mX,
+                mY, mAngle, mPos, mTan);
+        return mAngle;
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2010-2014  Eric Hansander
+ *
+ *  This file is part of Retro Timer.
+ *
+ *  Retro Timer is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Retro Timer is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Retro Timer.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.erichansander.retrotimer;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Building the scale strings, which TimerView does for all minutes each time
+ * its size changes
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ScaleStringBenchmark {
+
+    /** Letters in the scale, from small phones to tablets */
+    @Param({ "9", "15", "21", "31" })
+    public int length;
+
+    /** One scale string for each minute */
+    @Benchmark
+    public void scaleStrings(Blackhole bh) {
+        for (int minute = 0; minute <= DialMath.MAX_MINUTES; minute++) {
+            bh.consume(DialMath.getScaleString(length, minute));
+        }
+    }
+
+    /** The whole table, as built in TimerView.onSizeChanged */
+    @Benchmark
+    public char[][] scaleTable() {
+        return DialMath.buildScaleTable(length);
+    }
+}
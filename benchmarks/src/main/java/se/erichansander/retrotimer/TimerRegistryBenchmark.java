@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2010-2014  Eric Hansander
+ *
+ *  This file is part of Retro Timer.
+ *
+ *  Retro Timer is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Retro Timer is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Retro Timer.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.erichansander.retrotimer;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Adding and cancelling timers with many already running, and encoding them
+ * for the store
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class TimerRegistryBenchmark {
+
+    /** Timers running */
+    @Param({ "10", "100", "10000" })
+    public int timers;
+
+    private TimerRegistry mRegistry;
+    private Random mRandom;
+
+    @Setup
+    public void setup() {
+        mRandom = new Random(42);
+        mRegistry = new TimerRegistry();
+        for (int id = 1; id <= timers; id++) {
+            mRegistry.put(id, nextAlarmTime(), 15000, id);
+        }
+    }
+
+    private long nextAlarmTime() {
+        return 1400000000000L + mRandom.nextInt(89 * 60000);
+    }
+
+    /** Replaces a random timer with a new one, and looks up the first */
+    @Benchmark
+    public long cancelAndAdd() {
+        int id = 1 + mRandom.nextInt(timers);
+        mRegistry.remove(id);
+        mRegistry.put(id, nextAlarmTime(), 15000, id);
+        return mRegistry.peek().getAlarmTime();
+    }
+
+    /** The first timer goes off, and is set again */
+    @Benchmark
+    public long fireFirst() {
+        TimerRegistry.Entry first = mRegistry.peek();
+        int id = first.getId();
+        mRegistry.remove(id);
+        mRegistry.put(id, nextAlarmTime(), 15000, id);
+        return mRegistry.peek().getAlarmTime();
+    }
+
+    @Benchmark
+    public String encode() {
+        return mRegistry.encode(1);
+    }
+}
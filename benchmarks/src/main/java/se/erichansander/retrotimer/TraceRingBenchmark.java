@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2010-2014  Eric Hansander
+ *
+ *  This file is part of Retro Timer.
+ *
+ *  Retro Timer is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Retro Timer is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Retro Timer.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.erichansander.retrotimer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Appending to and decoding the TinyTracelog ring, both on the heap and, as on
+ * device, in a memory mapped file
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class TraceRingBenchmark {
+
+    @Param({ "heap", "mapped" })
+    public String buffer;
+
+    private File mFile;
+    private TraceRing mRing;
+    private long mArg = 0;
+
+    @Setup
+    public void setup() throws IOException {
+        ByteBuffer b;
+        if ("mapped".equals(buffer)) {
+            mFile = File.createTempFile("tinytracelog", null);
+            RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+            try {
+                b = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                        TraceRing.SIZE);
+            } finally {
+                raf.close();
+            }
+        } else {
+            b = ByteBuffer.allocate(TraceRing.SIZE);
+        }
+        mRing = new TraceRing(b);
+
+        // Fill the ring, so decode() has a full log to work on
+        for (int i = 0; i < TraceRing.CAPACITY; i++) {
+            mRing.append(i, TraceEvent.KLAXON_MEDIA_ERROR, 2, i, -i);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        if (mFile != null) {
+            mFile.delete();
+        }
+    }
+
+    @Benchmark
+    public void append() {
+        mRing.append(mArg, TraceEvent.RECEIVER_TRIGGER, 1, mArg++, 0);
+    }
+
+    @Benchmark
+    public String decode() {
+        return mRing.decode();
+    }
+}
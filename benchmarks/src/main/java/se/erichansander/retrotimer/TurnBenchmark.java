@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2010-2014  Eric Hansander
+ *
+ *  This file is part of Retro Timer.
+ *
+ *  Retro Timer is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Retro Timer is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Retro Timer.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.erichansander.retrotimer;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Mapping a drag on the dial to millis, as done for each touch event */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class TurnBenchmark {
+    private static final int DRAGS = 1024;
+
+    private final float[] mDx = new float[DRAGS];
+    private final long[] mBefore = new long[DRAGS];
+    private int mNext = 0;
+
+    @Setup
+    public void setup() {
+        // Drags back and forth across a 720 px wide dial, from all over the
+        // scale, including past both ends
+        Random random = new Random(42);
+        for (int i = 0; i < DRAGS; i++) {
+            mDx[i] = (random.nextFloat() - 0.5f) * 1440;
+            mBefore[i] = random.nextInt(DialMath.MAX_MINUTES + 1) * 60000L;
+        }
+    }
+
+    @Benchmark
+    public long turn() {
+        int i = mNext;
+        mNext = (i + 1) % DRAGS;
+        return DialMath.millisForTurn(mBefore[i], mDx[i], 720);
+    }
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright (C) 2010-2014  Eric Hansander
+ *
+ *  This file is part of Retro Timer.
+ *
+ *  Retro Timer is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Retro Timer is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Retro Timer.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.erichansander.retrotimer;
+
+/**
+ * Deterministic, virtual-time stand-in for everything TimerEngine needs from
+ * the device
+ *
+ * Time only moves when advanceTo() or advanceBy() is called, which fires the
+ * scheduled alarm and the ring timeout (standing in for TimerKlaxon) in time
+ * order, on the calling thread. The store is in memory, and runs its tasks
+ * right away. Nothing is random and nothing sleeps, so a run replays the same
+ * way every time, and many thousand alarms fit in a second.
+ */
+public class VirtualScheduler implements Clock, AlarmScheduler, Notifier,
+        StateStore {
+    private static final long NONE = Long.MAX_VALUE;
+
+    private final TimerEngine mEngine;
+
+    private long mNow;
+    // Wall clock time at boot, where the elapsedRealtime() clock starts
+    private final long mBootTime;
+    private TimerState mStored = new TimerState(TimerState.PHASE_IDLE, 0, 0,
+            TimerState.DEFAULT_TIMEOUT_MILLIS);
+    private String mStoredTimers = "";
+    private String mStoredTimeBase = "";
+
+    // The registered alarm, like the AlarmManager holds it
+    private long mAlarmAt = NONE;
+    private int mAlarmTimerId = -1;
+    private long mAlarmVersion = -1;
+    // The pending ring timeout, like TimerKlaxon holds it
+    private long mSilenceAt = NONE;
+    private int mSilenceTimerId = -1;
+    private long mSilenceVersion = -1;
+    private boolean mShowingSet = false;
+
+    private int mTriggered = 0;
+    private int mStale = 0;
+    private int mSilenced = 0;
+    private int mMissed = 0;
+    private long mMaxLateness = 0;
+
+    public VirtualScheduler(long startTime) {
+        mNow = startTime;
+        mBootTime = startTime;
+        mEngine = new TimerEngine(this, this, this, this);
+    }
+
+    public TimerEngine getEngine() {
+        return mEngine;
+    }
+
+    public long currentTimeMillis() {
+        return mNow;
+    }
+
+    public long elapsedRealtime() {
+        return mNow - mBootTime;
+    }
+
+    public int getBootCount() {
+        return 1;
+    }
+
+    /** Moves time forward by millis, firing whatever falls due */
+    public void advanceBy(long millis) {
+        advanceTo(mNow + millis);
+    }
+
+    /** Moves time forward to time, firing whatever falls due, in order */
+    public void advanceTo(long time) {
+        while (true) {
+            long next = Math.min(mAlarmAt, mSilenceAt);
+            if (next > time) {
+                break;
+            }
+            mNow = Math.max(mNow, next);
+
+            if (mAlarmAt == next) {
+                fireAlarm();
+            } else {
+                fireSilence();
+            }
+        }
+        mNow = Math.max(mNow, time);
+    }
+
+    /** What AlarmReceiver and TimerKlaxon do when the alarm goes off */
+    private void fireAlarm() {
+        int timerId = mAlarmTimerId;
+        long version = mAlarmVersion;
+        mAlarmAt = NONE;
+        mAlarmTimerId = -1;
+        mAlarmVersion = -1;
+
+        TimerState ringing = mEngine.triggerAlarm(timerId, version);
+        if (ringing == null) {
+            mStale++;
+            return;
+        }
+        mTriggered++;
+        mMaxLateness = Math.max(mMaxLateness, mNow - ringing.getAlarmTime());
+        if (timerId == TimerEngine.DIAL_TIMER_ID) {
+            mShowingSet = false;
+        }
+        // A new alarm takes over the klaxon from the one ringing
+        mSilenceAt = mNow + ringing.getTimeoutMillis();
+        mSilenceTimerId = timerId;
+        mSilenceVersion = ringing.getVersion();
+    }
+
+    private void fireSilence() {
+        int timerId = mSilenceTimerId;
+        long version = mSilenceVersion;
+        mSilenceAt = NONE;
+        mSilenceTimerId = -1;
+        mSilenceVersion = -1;
+
+        if (mEngine.silenceAlarm(timerId, version)) {
+            mSilenced++;
+        }
+    }
+
+    public void schedule(int timerId, long alarmTime, long elapsedAt,
+            long version) {
+        mAlarmAt = alarmTime;
+        mAlarmTimerId = timerId;
+        mAlarmVersion = version;
+    }
+
+    public void cancel() {
+        mAlarmAt = NONE;
+        mAlarmTimerId = -1;
+        mAlarmVersion = -1;
+    }
+
+    public void showAlarmSet(TimerState state) {
+        mShowingSet = true;
+    }
+
+    public void cancelAlarmSet() {
+        mShowingSet = false;
+    }
+
+    public void showMissed(long alarmTime) {
+        mMissed++;
+    }
+
+    public Snapshot load() {
+        return new Snapshot(mStored, mStoredTimers, mStoredTimeBase);
+    }
+
+    public void save(TimerState old, TimerState state) {
+        mStored = state;
+    }
+
+    public void saveTimers(String timers) {
+        mStoredTimers = timers;
+    }
+
+    public void saveTimeBase(String timeBase) {
+        mStoredTimeBase = timeBase;
+    }
+
+    public void runWhenDurable(Runnable task) {
+        task.run();
+    }
+
+    public void runInOrder(Runnable task) {
+        task.run();
+    }
+
+    /** Returns true if an alarm is registered with the scheduler */
+    public boolean isScheduled() {
+        return mAlarmAt != NONE;
+    }
+
+    /** Returns the time of the registered alarm, or Long.MAX_VALUE if none */
+    public long getScheduledTime() {
+        return mAlarmAt;
+    }
+
+    /** Returns true if the "alarm set" notification is showing */
+    public boolean isShowingAlarmSet() {
+        return mShowingSet;
+    }
+
+    /** Returns the last state saved to the store */
+    public TimerState getStored() {
+        return mStored;
+    }
+
+    /** Returns the timers last saved to the store */
+    public String getStoredTimers() {
+        return mStoredTimers;
+    }
+
+    /** Number of alarms that went off and started ringing */
+    public int getTriggered() {
+        return mTriggered;
+    }
+
+    /** Number of alarms that went off after being cancelled or replaced */
+    public int getStale() {
+        return mStale;
+    }
+
+    /** Number of alarms silenced by their ring timeout */
+    public int getSilenced() {
+        return mSilenced;
+    }
+
+    /** Number of timers that were missed, and reported as such */
+    public int getMissed() {
+        return mMissed;
+    }
+
+    /** The latest any alarm started ringing, in millis after its alarm time */
+    public long getMaxLateness() {
+        return mMaxLateness;
+    }
+}
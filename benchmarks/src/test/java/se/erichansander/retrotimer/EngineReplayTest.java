@@ -0,0 +1,232 @@
+/*
+ * Copyright (C) 2010-2014  Eric Hansander
+ *
+ *  This file is part of Retro Timer.
+ *
+ *  Retro Timer is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Retro Timer is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Retro Timer.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.erichansander.retrotimer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Replays sequences of user actions against TimerEngine on virtual time, and
+ * checks after every step that the engine, the store and the scheduler agree,
+ * and that a restarted engine restores the same timers
+ */
+public class EngineReplayTest {
+    private static final long MINUTE = 60000;
+    private static final long START = 1400000000000L;
+
+    @Test
+    public void randomReplays() {
+        for (long seed = 0; seed < 50; seed++) {
+            replay(seed, 1000);
+        }
+    }
+
+    @Test
+    public void alarmGoesOffOnTime() {
+        VirtualScheduler vs = new VirtualScheduler(START);
+        TimerEngine engine = vs.getEngine();
+
+        engine.setAlarmDelayed(5 * MINUTE);
+        check(vs, engine);
+        assertEquals(START + 5 * MINUTE, vs.getScheduledTime());
+
+        vs.advanceBy(5 * MINUTE - 1);
+        assertEquals(0, vs.getTriggered());
+        vs.advanceBy(1);
+        check(vs, engine);
+        assertEquals(1, vs.getTriggered());
+        assertEquals(0, vs.getMaxLateness());
+        assertEquals(TimerState.PHASE_RINGING, engine.getState().getPhase());
+
+        // Rings until its timeout, then silences itself
+        vs.advanceBy(TimerEngine.timeoutFor(5 * MINUTE));
+        check(vs, engine);
+        assertEquals(1, vs.getSilenced());
+        assertEquals(TimerState.PHASE_SILENCED, engine.getState().getPhase());
+    }
+
+    @Test
+    public void cancelledAlarmNeverGoesOff() {
+        VirtualScheduler vs = new VirtualScheduler(START);
+        TimerEngine engine = vs.getEngine();
+
+        engine.setAlarmDelayed(5 * MINUTE);
+        engine.cancelAlarm();
+        check(vs, engine);
+        assertFalse(vs.isScheduled());
+
+        vs.advanceBy(10 * MINUTE);
+        assertEquals(0, vs.getTriggered());
+        assertEquals(TimerState.PHASE_IDLE, engine.getState().getPhase());
+    }
+
+    @Test
+    public void replacedAlarmIsStale() {
+        VirtualScheduler vs = new VirtualScheduler(START);
+        TimerEngine engine = vs.getEngine();
+
+        long version = engine.setAlarmDelayed(5 * MINUTE).getVersion();
+        engine.setAlarmDelayed(10 * MINUTE);
+        check(vs, engine);
+        assertNull(engine.triggerAlarm(TimerEngine.DIAL_TIMER_ID, version));
+
+        vs.advanceBy(10 * MINUTE);
+        check(vs, engine);
+        assertEquals(1, vs.getTriggered());
+    }
+
+    @Test
+    public void alarmFromBeforeUpdateRings() {
+        VirtualScheduler vs = new VirtualScheduler(START);
+        TimerEngine engine = vs.getEngine();
+
+        TimerState armed = engine.setAlarmDelayed(5 * MINUTE);
+        // Registered by an older version, without a version of its own
+        assertNull(engine.triggerAlarm(TimerEngine.DIAL_TIMER_ID,
+                TimerEngine.VERSION_UNKNOWN, armed.getAlarmTime() - MINUTE));
+        TimerState ringing = engine.triggerAlarm(TimerEngine.DIAL_TIMER_ID,
+                TimerEngine.VERSION_UNKNOWN, armed.getAlarmTime());
+        assertEquals(TimerState.PHASE_RINGING, ringing.getPhase());
+        assertEquals(TimerState.PHASE_RINGING, engine.getState().getPhase());
+    }
+
+    @Test
+    public void firstOfManyTimersIsScheduled() {
+        VirtualScheduler vs = new VirtualScheduler(START);
+        TimerEngine engine = vs.getEngine();
+
+        engine.setAlarmDelayed(30 * MINUTE);
+        int early = engine.addTimer(START + 10 * MINUTE, 15000);
+        engine.addTimer(START + 20 * MINUTE, 15000);
+        check(vs, engine);
+        assertEquals(START + 10 * MINUTE, vs.getScheduledTime());
+
+        assertTrue(engine.cancelTimer(early));
+        check(vs, engine);
+        assertEquals(START + 20 * MINUTE, vs.getScheduledTime());
+
+        vs.advanceBy(30 * MINUTE);
+        check(vs, engine);
+        assertEquals(2, vs.getTriggered());
+        assertEquals(0, engine.getTimerCount());
+    }
+
+    @Test
+    public void missedTimerIsReported() {
+        VirtualScheduler vs = new VirtualScheduler(START);
+        TimerEngine engine = vs.getEngine();
+        engine.addTimer(START + 5 * MINUTE, 15000);
+        engine.addTimer(START + 20 * MINUTE, 15000);
+
+        // Restarted after the first timer should have gone off
+        VirtualScheduler restored = new VirtualScheduler(START + 10 * MINUTE);
+        restored.saveTimers(vs.getStoredTimers());
+        TimerEngine copy = restored.getEngine();
+        copy.init();
+        assertEquals(1, restored.getMissed());
+        assertEquals(1, copy.getTimerCount());
+        assertEquals(START + 20 * MINUTE, restored.getScheduledTime());
+    }
+
+    /* Replays steps random actions, seeded with seed */
+    private static void replay(long seed, int steps) {
+        Random random = new Random(seed);
+        VirtualScheduler vs = new VirtualScheduler(START);
+        TimerEngine engine = vs.getEngine();
+        ArrayList<Integer> timers = new ArrayList<Integer>();
+
+        for (int i = 0; i < steps; i++) {
+            switch (random.nextInt(8)) {
+            case 0:
+            case 1:
+                engine.setAlarmDelayed((1 + random.nextInt(
+                        DialMath.MAX_MINUTES)) * MINUTE);
+                break;
+            case 2:
+                engine.cancelAlarm();
+                break;
+            case 3:
+                engine.dismissAlarm();
+                break;
+            case 4:
+                timers.add(engine.addTimer(vs.currentTimeMillis()
+                        + random.nextInt(120) * MINUTE, 15000));
+                break;
+            case 5:
+                if (!timers.isEmpty()) {
+                    engine.cancelTimer(timers.remove(random.nextInt(timers
+                            .size())));
+                }
+                break;
+            default:
+                vs.advanceBy(random.nextInt(30) * MINUTE);
+                break;
+            }
+            check(vs, engine);
+        }
+
+        // Whatever is left set must go off, on time
+        vs.advanceBy(121 * MINUTE);
+        check(vs, engine);
+        assertEquals("timers left, seed " + seed, 0, engine.getTimerCount());
+        assertEquals("alarm late, seed " + seed, 0, vs.getMaxLateness());
+    }
+
+    private static void check(VirtualScheduler vs, TimerEngine engine) {
+        TimerState state = engine.getState();
+        assertEquals("store behind engine", state, vs.getStored());
+        assertEquals("scheduler out of sync", engine.getTimerCount() > 0,
+                vs.isScheduled());
+        assertEquals("notification out of sync", state.isAlarmSet(),
+                vs.isShowingAlarmSet());
+        if (state.isAlarmSet()) {
+            assertEquals("wrong millis left", state.getAlarmTime()
+                    - vs.currentTimeMillis(), engine.getMillisLeftToAlarm());
+        }
+
+        // Only the first timer is registered with the scheduler
+        long next = engine.getNextAlarmTime();
+        assertEquals("first timer not scheduled",
+                engine.getTimerCount() == 0 ? Long.MAX_VALUE : next,
+                vs.getScheduledTime());
+        if (state.isAlarmSet()) {
+            assertTrue("dial timer not in registry",
+                    state.getAlarmTime() >= next);
+        }
+
+        // A fresh engine on the stored state must see the same timers
+        VirtualScheduler restored = new VirtualScheduler(
+                vs.currentTimeMillis());
+        restored.save(null, vs.getStored());
+        restored.saveTimers(vs.getStoredTimers());
+        TimerEngine copy = restored.getEngine();
+        assertEquals("timers not restored", engine.getTimerCount(),
+                copy.getTimerCount());
+        assertEquals("timers not restored", engine.getNextAlarmTime(),
+                copy.getNextAlarmTime());
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2010-2014  Eric Hansander
+ *
+ *  This file is part of Retro Timer.
+ *
+ *  Retro Timer is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Retro Timer is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Retro Timer.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.erichansander.retrotimer;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.os.SystemClock;
+
+/**
+ * AlarmStrategy for API 21 and later, using setAlarmClock()
+ *
+ * Alarm clocks are exact, and are let through by Doze, which wakes up a bit
+ * before them. They also show in the status bar, and tapping that opens
+ * TimerSet. They are always set on the wall clock, so they have to be set
+ * again when it is changed, see RetroTimer.refreshAlarm().
+ *
+ * The app is built against an older API, so the methods are looked up by
+ * reflection, once.
+ */
+class AlarmClockStrategy extends AlarmStrategy {
+    private final Constructor<?> mInfoConstructor;
+    private final Method mSetAlarmClock;
+
+    private AlarmClockStrategy(Constructor<?> infoConstructor,
+            Method setAlarmClock) {
+        mInfoConstructor = infoConstructor;
+        mSetAlarmClock = setAlarmClock;
+    }
+
+    /** Returns the strategy, or null if the device does not support it */
+    public static AlarmStrategy create() {
+        try {
+            Class<?> info = Class
+                    .forName("android.app.AlarmManager$AlarmClockInfo");
+            return new AlarmClockStrategy(info.getConstructor(long.class,
+                    PendingIntent.class), AlarmManager.class.getMethod(
+                    "setAlarmClock", info, PendingIntent.class));
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    @Override
+    public int getId() {
+        return STRATEGY_ALARM_CLOCK;
+    }
+
+    @Override
+    public void set(Context context, AlarmManager am, long alarmTime,
+            long elapsedAt, PendingIntent operation) {
+        Intent viewAlarm = new Intent(context, TimerSet.class);
+        viewAlarm.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+        PendingIntent show = PendingIntent.getActivity(context, 0, viewAlarm,
+                0);
+
+        // The wall clock time that is elapsedAt, as the clock stands now
+        long wallTime = System.currentTimeMillis()
+                + (elapsedAt - SystemClock.elapsedRealtime());
+        try {
+            mSetAlarmClock.invoke(am,
+                    mInfoConstructor.newInstance(wallTime, show), operation);
+        } catch (Exception e) {
+            // Should not happen, since the methods were found, but if it does
+            // an exact alarm is better than none
+            TinyTracelog.trace(TraceEvent.ALARM_STRATEGY_FAILED, getId());
+            am.setExact(AlarmManager.ELAPSED_REALTIME_WAKEUP, elapsedAt,
+                    operation);
+        }
+    }
+
+    @Override
+    public void setWakeup(Context context, AlarmManager am, long wakeAt,
+            PendingIntent operation) {
+        // Doze lets go a bit before the alarm clock, so this is in time
+        am.setExact(AlarmManager.ELAPSED_REALTIME_WAKEUP, wakeAt, operation);
+    }
+}
@@ -36,81 +36,205 @@
 
 package se.erichansander.retrotimer;
 
+import android.annotation.TargetApi;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
+import android.os.Build;
+import android.os.SystemClock;
 
 /**
  * Receives intents from AlarmManager and triggers necessary actions
  * 
- * Receives intents: ALARM_TRIGGER_ACTION, ALARM_SILENCE_ACTION,
- * ALARM_DISMISS_ACTION
+ * Receives intents: ALARM_TRIGGER_ACTION, ALARM_PREARM_ACTION,
+ * ALARM_SILENCE_ACTION, ALARM_DISMISS_ACTION, and from the system
+ * BOOT_COMPLETED and TIME_SET
  * 
  * and distributes actions to the other parts of the app (by starting services
  * and activities, and triggering notifications).
  */
 public class AlarmReceiver extends BroadcastReceiver {
 
-    /**
-     * If the alarm is older than STALE_WINDOW seconds, ignore. It is probably
-     * the result of a time or timezone change
-     */
-    private final static int STALE_WINDOW = 60 * 30;
-
     @Override
     public void onReceive(Context context, Intent intent) {
         long alarmTime = intent.getLongExtra(RetroTimer.ALARM_TIME_EXTRA, 0);
+        long version = intent.getLongExtra(RetroTimer.ALARM_VERSION_EXTRA,
+                TimerEngine.VERSION_UNKNOWN);
+        int timerId = intent.getIntExtra(RetroTimer.ALARM_TIMER_ID_EXTRA,
+                TimerEngine.DIAL_TIMER_ID);
 
         TinyTracelog.init(context);
 
         if (Intent.ACTION_BOOT_COMPLETED.equals(intent.getAction())) {
-            TinyTracelog.trace("2.1");
-            RetroTimer.initAlarm(context);
+            TinyTracelog.trace(TraceEvent.RECEIVER_BOOT);
+            handleBoot(context);
+        } else if (Intent.ACTION_TIME_CHANGED.equals(intent.getAction())) {
+            TinyTracelog.trace(TraceEvent.RECEIVER_TIME_CHANGED);
+            // Alarm clocks are set on the wall clock, so set them again
+            RetroTimer.refreshAlarm(context);
         } else if (RetroTimer.ALARM_TRIGGER_ACTION.equals(intent.getAction())) {
-            TinyTracelog.trace("2.2 " + System.currentTimeMillis());
-            handleAlarmTrigger(context, alarmTime);
+            long received = SystemClock.elapsedRealtime();
+            TinyTracelog.trace(TraceEvent.RECEIVER_TRIGGER, alarmTime);
+            TinyTracelog.trace(TraceEvent.RECEIVER_TRIGGER_DELTA,
+                    -RetroTimer.getMillisUntil(context, alarmTime),
+                    AlarmStrategy.get().getId());
+            handleAlarmTrigger(context, alarmTime, timerId, version, received);
+        } else if (RetroTimer.ALARM_PREARM_ACTION.equals(intent.getAction())) {
+            TinyTracelog.trace(TraceEvent.RECEIVER_PREARM, alarmTime);
+            handleAlarmPrearm(context, alarmTime, timerId, version);
         } else if (RetroTimer.ALARM_SILENCE_ACTION.equals(intent.getAction())) {
-            TinyTracelog.trace("7.1");
+            TinyTracelog.trace(TraceEvent.RECEIVER_SILENCE);
             // No action needed, since TimerKlaxon already stopped everything
         } else if (RetroTimer.ALARM_DISMISS_ACTION.equals(intent.getAction())) {
-            TinyTracelog.trace("7.2");
+            TinyTracelog.trace(TraceEvent.RECEIVER_DISMISS);
             handleAlarmDismiss(context);
         } else {
             // Unknown intent!
         }
     }
 
+    /**
+     * Restores the alarms after a reboot, off the main thread where the
+     * platform allows.
+     * 
+     * The work is done on the PrefsWriter thread, and the broadcast is only
+     * finished once the alarm is registered again and the state is on disk,
+     * since the process may be killed after that.
+     */
+    private void handleBoot(Context context) {
+        final long start = SystemClock.elapsedRealtime();
+        final Context app = context.getApplicationContext();
+        final PrefsWriter writer = PrefsWriter.get(app);
+        final Runnable finish;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            finish = AsyncBroadcast.start(this);
+        } else {
+            finish = null;
+        }
+
+        Runnable restore = new Runnable() {
+            public void run() {
+                RetroTimer.onBoot(app);
+                writer.runWhenDurable(new Runnable() {
+                    public void run() {
+                        TinyTracelog.trace(TraceEvent.RECEIVER_BOOT_RESTORED,
+                                SystemClock.elapsedRealtime() - start);
+                        if (finish != null) {
+                            finish.run();
+                        }
+                    }
+                });
+            }
+        };
+
+        if (finish != null) {
+            writer.runInOrder(restore);
+        } else {
+            // No goAsync(), so restore here, and block until it is done
+            restore.run();
+            writer.sync();
+        }
+    }
+
     /**
      * Trigger the alarm, which means make some preparations and start the
      * TimerKlaxon service.
      * 
      * This is triggered by the AlarmManager.
      */
-    private void handleAlarmTrigger(Context context, long alarmTime) {
-        long now = System.currentTimeMillis();
-        if (now > alarmTime + STALE_WINDOW * 1000) {
-            // Stale alarm. Just ignore it.
-            TinyTracelog.trace("2.2.e");
+    private void handleAlarmTrigger(Context context, long alarmTime,
+            int timerId, long version, long received) {
+        TimerState ringing = RetroTimer.triggerAlarm(context, timerId,
+                version, alarmTime);
+        if (ringing == null) {
+            /*
+             * Stale alarm, that was cancelled or replaced after it was armed.
+             * Just ignore it.
+             */
+            TinyTracelog.trace(TraceEvent.RECEIVER_TRIGGER_STALE, version,
+                    RetroTimer.getState(context).getVersion());
             return;
         }
 
+        TriggerStats.record(context, alarmTime, AlarmStrategy.get().getId());
+        AlertLatency.mark(context, alarmTime, AlertLatency.STAGE_TRIGGER,
+                received);
+
         /*
-         * Maintain a CPU wake lock until the TimerKlaxon has started.
+         * Maintain a CPU wake lock until the TimerKlaxon has started. It takes
+         * over the hold, and keeps it while ringing.
          */
-        WakeLockHolder.acquireScreenCpuWakeLock(context);
+        WakeLockHolder.ALARM.acquire(context,
+                WakeLockHolder.owner(timerId, ringing.getVersion()),
+                WakeLockHolder.maxHoldForAlarm(ringing.getTimeoutMillis()));
 
         Intent playAlarm = new Intent(context, TimerKlaxon.class);
         playAlarm.putExtra(RetroTimer.ALARM_TIME_EXTRA, alarmTime);
+        playAlarm.putExtra(RetroTimer.ALARM_VERSION_EXTRA,
+                ringing.getVersion());
+        playAlarm.putExtra(RetroTimer.ALARM_TIMER_ID_EXTRA, timerId);
+        playAlarm.putExtra(RetroTimer.ALARM_TIMEOUT_EXTRA,
+                ringing.getTimeoutMillis());
         context.startService(playAlarm);
     }
 
+    /**
+     * Has the TimerKlaxon get ready to sound the alarm, a few seconds ahead.
+     * 
+     * This is triggered by the AlarmManager, TimerKlaxon.PREARM_MILLIS before
+     * the alarm.
+     */
+    private void handleAlarmPrearm(Context context, long alarmTime,
+            int timerId, long version) {
+        if (!RetroTimer.isPending(context, timerId, version)) {
+            TinyTracelog.trace(TraceEvent.RECEIVER_PREARM_STALE, timerId,
+                    version);
+            return;
+        }
+
+        /*
+         * Keep the CPU, but not yet the screen, awake until the TimerKlaxon
+         * has gone off. It takes over the wake lock from here.
+         */
+        WakeLockHolder.PREARM.acquire(context,
+                WakeLockHolder.owner(timerId, version),
+                TimerKlaxon.PREARM_MAX_WAKE_MILLIS);
+
+        Intent prearm = new Intent(context, TimerKlaxon.class);
+        prearm.setAction(RetroTimer.ALARM_PREARM_ACTION);
+        prearm.putExtra(RetroTimer.ALARM_TIME_EXTRA, alarmTime);
+        prearm.putExtra(RetroTimer.ALARM_VERSION_EXTRA, version);
+        prearm.putExtra(RetroTimer.ALARM_TIMER_ID_EXTRA, timerId);
+        context.startService(prearm);
+    }
+
     /**
      * Stops the TimerKlaxon.
      * 
      * This is normally triggered by a user action to dismiss the alarm.
      */
     private void handleAlarmDismiss(Context context) {
+        RetroTimer.dismissAlarm(context);
+
         // kill the Klaxon
         context.stopService(new Intent(context, TimerKlaxon.class));
     }
+
+    /* goAsync() is API 11, so keep it out of AlarmReceiver itself */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static class AsyncBroadcast {
+        /**
+         * Keeps the broadcast receiver going after onReceive() returns, until
+         * the returned Runnable is run
+         */
+        static Runnable start(BroadcastReceiver receiver) {
+            final BroadcastReceiver.PendingResult result = receiver
+                    .goAsync();
+            return new Runnable() {
+                public void run() {
+                    result.finish();
+                }
+            };
+        }
+    }
 }
@@ -0,0 +1,39 @@
+/*
+ * Copyright (C) 2010-2014  Eric Hansander
+ *
+ *  This file is part of Retro Timer.
+ *
+ *  Retro Timer is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Retro Timer is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Retro Timer.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.erichansander.retrotimer;
+
+/**
+ * Wakes the app up when an alarm is due. On device, the AlarmManager.
+ *
+ * There is at most one alarm registered at a time, for the timer that goes
+ * off first. When it is due, the scheduler should call
+ * TimerEngine.triggerAlarm() with its timer id and version.
+ */
+public interface AlarmScheduler {
+    /**
+     * Registers an alarm at alarmTime, replacing any earlier one. alarmTime is
+     * on TimerEngine's time base, and elapsedAt is when it falls due on the
+     * elapsedRealtime() clock.
+     */
+    void schedule(int timerId, long alarmTime, long elapsedAt, long version);
+
+    /** Unregisters the alarm, if any */
+    void cancel();
+}
@@ -0,0 +1,456 @@
+/*
+ * Copyright (C) 2010-2014  Eric Hansander
+ *
+ *  This file is part of Retro Timer.
+ *
+ *  Retro Timer is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Retro Timer is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Retro Timer.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.erichansander.retrotimer;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.media.AudioFormat;
+import android.media.AudioManager;
+import android.media.AudioTrack;
+import android.media.MediaPlayer;
+import android.media.MediaPlayer.OnCompletionListener;
+import android.media.MediaPlayer.OnErrorListener;
+import android.media.MediaPlayer.OnPreparedListener;
+import android.os.SystemClock;
+
+/**
+ * Plays the looping alarm sounds
+ * 
+ * The Ogg resources are decoded to PCM once, in the background, and cached in
+ * private files. The files are kept with the app's own files rather than in
+ * the cache dir, which the system may purge, so the decode is not redone.
+ * Nor is a decode that failed, until the resource changes. An alarm then only has to read the cached PCM (if not already
+ * in memory) and hand it to a static mode AudioTrack, which loops it with no
+ * further work, instead of having MediaPlayer set up an Ogg decoder after the
+ * alarm has triggered. Even that can be done ahead of time, with prepare().
+ * 
+ * Falls back to MediaPlayer when there is no cached PCM yet, when the device
+ * is too old to decode (pre-API 16), or when the AudioTrack cannot be created.
+ * The MediaPlayer is prepared asynchronously, and started once prepared.
+ * 
+ * Not thread safe. Should be used from a thread with a Looper, which then
+ * gets the MediaPlayer callbacks, see AudioWorker.
+ */
+class AlarmSound {
+
+    /** The sounds to keep decoded */
+    private static final int[] SOUNDS = new int[] { R.raw.classic_alarm,
+            R.raw.in_call_alarm };
+
+    private static final int CACHE_MAGIC = 0x50434d31; // "PCM1"
+    private static final int CACHE_HEADER_SIZE = 24;
+
+    /* Whether warmUp() has run in this process */
+    private static boolean sWarmedUp = false;
+
+    /** 16 bit PCM audio */
+    static class Pcm {
+        final short[] mSamples;
+        final int mNumSamples;
+        final int mSampleRate;
+        final int mChannels;
+
+        Pcm(short[] samples, int numSamples, int sampleRate, int channels) {
+            mSamples = samples;
+            mNumSamples = numSamples;
+            mSampleRate = sampleRate;
+            mChannels = channels;
+        }
+    }
+
+    /*
+     * The last sound loaded, kept for the next alarm. Guarded by the class
+     * lock.
+     */
+    private static int sLoadedRes = 0;
+    private static Pcm sLoaded = null;
+
+    private final Context mContext;
+    private final OnErrorListener mErrorListener;
+    private final Runnable mOnStarted;
+    private AudioTrack mTrack = null;
+    private MediaPlayer mMediaPlayer = null;
+    private boolean mMediaPlayerReady = false;
+    private int mPreparedRes = 0;
+    private float mPreparedVolume = 0;
+    private boolean mStarted = false;
+
+    private final OnPreparedListener mPreparedListener = new OnPreparedListener() {
+        public void onPrepared(MediaPlayer mp) {
+            if (mp != mMediaPlayer) {
+                return;
+            }
+            mMediaPlayerReady = true;
+            if (mStarted) {
+                mp.start();
+                mOnStarted.run();
+            }
+        }
+    };
+
+    private final OnCompletionListener mCompletionListener = new OnCompletionListener() {
+        public void onCompletion(MediaPlayer mp) {
+            // Looping is broken on some devices, so loop by hand
+            if (mp == mMediaPlayer && mStarted) {
+                mp.seekTo(0);
+                mp.start();
+            }
+        }
+    };
+
+    /**
+     * errorListener is told about MediaPlayer errors. onStarted is run when the
+     * sound has started playing.
+     */
+    public AlarmSound(Context context, OnErrorListener errorListener,
+            Runnable onStarted) {
+        mContext = context;
+        mErrorListener = errorListener;
+        mOnStarted = onStarted;
+    }
+
+    /**
+     * Decodes any sounds not already cached, and not failed before, on a
+     * background thread. Only does so once per process, and does nothing on
+     * devices that cannot decode.
+     */
+    public static synchronized void warmUp(Context context) {
+        if (android.os.Build.VERSION.SDK_INT < 16 || sWarmedUp) {
+            return;
+        }
+        sWarmedUp = true;
+
+        final Context appContext = context.getApplicationContext();
+        Thread t = new Thread("AlarmSound") {
+            @Override
+            public void run() {
+                for (int res : SOUNDS) {
+                    // Where older versions kept the cache
+                    new File(appContext.getCacheDir(), getCacheName(res))
+                            .delete();
+
+                    if (!getCacheFile(appContext, res).exists()
+                            && !hasFailed(appContext, res)) {
+                        decodeToCache(appContext, res);
+                    }
+                }
+            }
+        };
+        t.setPriority(Thread.MIN_PRIORITY);
+        t.start();
+    }
+
+    /**
+     * Gets ready to loop the sound res at the given volume (0..1), on the
+     * alarm stream, so that play() can start it at once. Releases any sound
+     * already prepared or playing.
+     */
+    public void prepare(int res, float volume) throws IOException {
+        stop();
+
+        long start = SystemClock.uptimeMillis();
+        Pcm pcm = load(mContext, res);
+        if (pcm != null && preparePcm(pcm, volume)) {
+            TinyTracelog.trace(TraceEvent.KLAXON_RING_PCM, pcm.mNumSamples
+                    / pcm.mChannels, SystemClock.uptimeMillis() - start);
+        } else {
+            mMediaPlayer = new MediaPlayer();
+            mMediaPlayer.setOnErrorListener(mErrorListener);
+            mMediaPlayer.setOnPreparedListener(mPreparedListener);
+            mMediaPlayer.setOnCompletionListener(mCompletionListener);
+            mMediaPlayer.setVolume(volume, volume);
+            try {
+                setDataSourceFromResource(mMediaPlayer, res);
+            } catch (IOException ex) {
+                TinyTracelog.trace(TraceEvent.KLAXON_DATA_SOURCE_FAILED);
+                throw ex;
+            }
+            mMediaPlayer.setAudioStreamType(AudioManager.STREAM_ALARM);
+            mMediaPlayer.setLooping(true);
+            mMediaPlayerReady = false;
+            mMediaPlayer.prepareAsync();
+        }
+        mPreparedRes = res;
+        mPreparedVolume = volume;
+    }
+
+    /**
+     * Starts looping the sound res at the given volume (0..1), on the alarm
+     * stream. Uses what prepare() got ready, if it was for the same sound. If
+     * the MediaPlayer is still preparing, it starts once prepared.
+     */
+    public void play(int res, float volume) throws IOException {
+        if (mStarted || mPreparedRes != res || mPreparedVolume != volume) {
+            prepare(res, volume);
+        }
+
+        mStarted = true;
+        if (mTrack != null) {
+            mTrack.play();
+            mOnStarted.run();
+        } else if (mMediaPlayerReady) {
+            mMediaPlayer.start();
+            mOnStarted.run();
+        }
+    }
+
+    /**
+     * Stops playing, and releases what was prepared. Returns true if anything
+     * was playing.
+     */
+    public boolean stop() {
+        if (mTrack != null) {
+            if (mStarted) {
+                mTrack.stop();
+            }
+            mTrack.release();
+            mTrack = null;
+        }
+        if (mMediaPlayer != null) {
+            if (mMediaPlayerReady) {
+                mMediaPlayer.stop();
+            }
+            mMediaPlayer.release();
+            mMediaPlayer = null;
+            mMediaPlayerReady = false;
+        }
+        mPreparedRes = 0;
+
+        boolean wasPlaying = mStarted;
+        mStarted = false;
+        return wasPlaying;
+    }
+
+    private boolean preparePcm(Pcm pcm, float volume) {
+        int frames = pcm.mNumSamples / pcm.mChannels;
+        AudioTrack track = new AudioTrack(AudioManager.STREAM_ALARM,
+                pcm.mSampleRate,
+                pcm.mChannels == 1 ? AudioFormat.CHANNEL_OUT_MONO
+                        : AudioFormat.CHANNEL_OUT_STEREO,
+                AudioFormat.ENCODING_PCM_16BIT, pcm.mNumSamples * 2,
+                AudioTrack.MODE_STATIC);
+
+        /*
+         * A static track is only initialized once its data is written. Fails
+         * e.g. if the sound is larger than the shared memory the audio server
+         * is willing to hand out.
+         */
+        int written = track.write(pcm.mSamples, 0, pcm.mNumSamples);
+        if (written != pcm.mNumSamples
+                || track.getState() != AudioTrack.STATE_INITIALIZED
+                || track.setLoopPoints(0, frames, -1) != AudioTrack.SUCCESS) {
+            TinyTracelog.trace(TraceEvent.KLAXON_PCM_FAILED, written,
+                    track.getState());
+            track.release();
+            return false;
+        }
+
+        track.setStereoVolume(volume, volume);
+        mTrack = track;
+        return true;
+    }
+
+    /**
+     * Returns the decoded sound res, from memory or the cache file, or null if
+     * it has not been decoded yet. Never decodes.
+     */
+    static synchronized Pcm load(Context context, int res) {
+        if (sLoaded != null && sLoadedRes == res) {
+            return sLoaded;
+        }
+
+        Pcm pcm = readCache(context, res);
+        if (pcm != null) {
+            sLoadedRes = res;
+            sLoaded = pcm;
+        }
+        return pcm;
+    }
+
+    private static void decodeToCache(Context context, int res) {
+        long start = SystemClock.uptimeMillis();
+        try {
+            Pcm pcm = PcmDecoder.decode(context, res);
+            writeCache(context, res, pcm);
+            TinyTracelog.trace(TraceEvent.SOUND_DECODED, pcm.mNumSamples,
+                    SystemClock.uptimeMillis() - start);
+        } catch (Exception ex) {
+            // MediaPlayer will have to do
+            TinyTracelog.trace(TraceEvent.SOUND_DECODE_FAILED);
+            markFailed(context, res);
+        }
+    }
+
+    private static String getCacheName(int res) {
+        return "alarm_pcm_" + res;
+    }
+
+    private static File getCacheFile(Context context, int res) {
+        return new File(context.getFilesDir(), getCacheName(res));
+    }
+
+    /* Marks that res could not be decoded, holding the resource length */
+    private static File getFailedFile(Context context, int res) {
+        return new File(context.getFilesDir(), getCacheName(res) + ".failed");
+    }
+
+    private static void markFailed(Context context, int res) {
+        try {
+            DataOutputStream out = new DataOutputStream(new FileOutputStream(
+                    getFailedFile(context, res)));
+            try {
+                out.writeLong(getSourceLength(context, res));
+            } finally {
+                out.close();
+            }
+        } catch (IOException ex) {
+            // Will be tried again next time
+        }
+    }
+
+    /* Returns true if decoding res failed, and res has not changed since */
+    private static boolean hasFailed(Context context, int res) {
+        File file = getFailedFile(context, res);
+        if (!file.exists()) {
+            return false;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new FileInputStream(file));
+            try {
+                return in.readLong() == getSourceLength(context, res);
+            } finally {
+                in.close();
+            }
+        } catch (IOException ex) {
+            return false;
+        }
+    }
+
+    /*
+     * Resource ids may be renumbered by an update, so the cache file also
+     * records the length of the resource it was decoded from.
+     */
+    private static long getSourceLength(Context context, int res)
+            throws IOException {
+        AssetFileDescriptor afd = context.getResources()
+                .openRawResourceFd(res);
+        if (afd == null) {
+            return -1;
+        }
+        long length = afd.getLength();
+        afd.close();
+        return length;
+    }
+
+    private static void writeCache(Context context, int res, Pcm pcm)
+            throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(
+                CACHE_HEADER_SIZE + pcm.mNumSamples * 2).order(
+                ByteOrder.nativeOrder());
+        buf.putInt(CACHE_MAGIC);
+        buf.putLong(getSourceLength(context, res));
+        buf.putInt(pcm.mSampleRate);
+        buf.putInt(pcm.mChannels);
+        buf.putInt(pcm.mNumSamples);
+        buf.asShortBuffer().put(pcm.mSamples, 0, pcm.mNumSamples);
+        buf.rewind();
+
+        // Write it all, then rename, so that readers never see half a file
+        File file = getCacheFile(context, res);
+        File tmp = new File(file.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(tmp);
+        try {
+            FileChannel ch = out.getChannel();
+            while (buf.hasRemaining()) {
+                ch.write(buf);
+            }
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("Could not rename " + tmp);
+        }
+    }
+
+    private static Pcm readCache(Context context, int res) {
+        File file = getCacheFile(context, res);
+        if (!file.exists()) {
+            return null;
+        }
+
+        try {
+            FileInputStream in = new FileInputStream(file);
+            try {
+                FileChannel ch = in.getChannel();
+                ByteBuffer buf = ByteBuffer.allocate((int) ch.size()).order(
+                        ByteOrder.nativeOrder());
+                while (buf.hasRemaining() && ch.read(buf) >= 0) {
+                }
+                buf.flip();
+
+                if (buf.remaining() < CACHE_HEADER_SIZE
+                        || buf.getInt() != CACHE_MAGIC
+                        || buf.getLong() != getSourceLength(context, res)) {
+                    file.delete();
+                    return null;
+                }
+                int sampleRate = buf.getInt();
+                int channels = buf.getInt();
+                int numSamples = buf.getInt();
+                if (channels < 1 || channels > 2
+                        || buf.remaining() != numSamples * 2) {
+                    file.delete();
+                    return null;
+                }
+
+                short[] samples = new short[numSamples];
+                buf.asShortBuffer().get(samples);
+                return new Pcm(samples, numSamples, sampleRate, channels);
+            } finally {
+                in.close();
+            }
+        } catch (IOException ex) {
+            return null;
+        }
+    }
+
+    private void setDataSourceFromResource(MediaPlayer player, int res)
+            throws IOException {
+        AssetFileDescriptor afd = mContext.getResources().openRawResourceFd(
+                res);
+        if (afd != null) {
+            player.setDataSource(afd.getFileDescriptor(), afd.getStartOffset(),
+                    afd.getLength());
+            afd.close();
+        }
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2010-2014  Eric Hansander
+ *
+ *  This file is part of Retro Timer.
+ *
+ *  Retro Timer is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Retro Timer is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Retro Timer.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.erichansander.retrotimer;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.os.Build;
+
+/**
+ * How the alarm is registered with the AlarmManager
+ *
+ * The AlarmManager API for precise alarms has changed with almost every
+ * Android version, and since Doze (API 23) plain exact alarms may be deferred
+ * by minutes while the device is idle. There is one strategy per API level,
+ * and the best one for the device is selected once, by get().
+ *
+ * This base class is the strategy for devices before KitKat, where set() is
+ * exact.
+ */
+class AlarmStrategy {
+    /** AlarmManager.set(), before KitKat */
+    public static final int STRATEGY_SET = 1;
+    /** AlarmManager.setExact(), KitKat and later */
+    public static final int STRATEGY_EXACT = 2;
+    /** AlarmManager.setAlarmClock(), API 21 and later */
+    public static final int STRATEGY_ALARM_CLOCK = 3;
+
+    private static AlarmStrategy sSelected = null;
+
+    /** Returns the strategy for this device, selecting it on first call */
+    public static synchronized AlarmStrategy get() {
+        if (sSelected == null) {
+            sSelected = select();
+            TinyTracelog.trace(TraceEvent.ALARM_STRATEGY, sSelected.getId());
+        }
+        return sSelected;
+    }
+
+    private static AlarmStrategy select() {
+        /*
+         * The strategies for newer API levels are written against this
+         * device's API level, so they are only loaded where they work
+         */
+        int sdk = Build.VERSION.SDK_INT;
+        if (sdk >= 21) {
+            // Doze (API 23): only alarm clocks are sure to fire on time when
+            // idle
+            AlarmStrategy s = AlarmClockStrategy.create();
+            if (s != null) {
+                return s;
+            }
+        }
+        if (sdk >= Build.VERSION_CODES.KITKAT) {
+            return new ExactAlarmStrategy();
+        }
+        return new AlarmStrategy();
+    }
+
+    /** Returns one of the STRATEGY_* ids, for tracing and stats */
+    public int getId() {
+        return STRATEGY_SET;
+    }
+
+    /**
+     * Registers operation to be sent at elapsedAt, in
+     * SystemClock.elapsedRealtime() millis, replacing any earlier registration
+     * of it. alarmTime is the same time on TimerEngine's time base, for
+     * showing to the user.
+     */
+    public void set(Context context, AlarmManager am, long alarmTime,
+            long elapsedAt, PendingIntent operation) {
+        am.set(AlarmManager.ELAPSED_REALTIME_WAKEUP, elapsedAt, operation);
+    }
+
+    /**
+     * Registers operation to be sent at wakeAt, in
+     * SystemClock.elapsedRealtime() millis, as exactly as the device allows,
+     * but as a plain wakeup rather than an alarm the user sees. For getting
+     * ready ahead of an alarm.
+     */
+    public void setWakeup(Context context, AlarmManager am, long wakeAt,
+            PendingIntent operation) {
+        am.set(AlarmManager.ELAPSED_REALTIME_WAKEUP, wakeAt, operation);
+    }
+
+    /** Cancels what set() registered for operation */
+    public void cancel(Context context, AlarmManager am,
+            PendingIntent operation) {
+        am.cancel(operation);
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2010-2014  Eric Hansander
+ *
+ *  This file is part of Retro Timer.
+ *
+ *  Retro Timer is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Retro Timer is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Retro Timer.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.erichansander.retrotimer;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import android.content.Context;
+import android.os.SystemClock;
+
+/**
+ * Where the time goes between an alarm going off and the user noticing it
+ *
+ * For each of the last CAPACITY alarms, records when it reached each STAGE_*
+ * of the firing pipeline, in millis after its alarm time (negative if before,
+ * e.g. when the TimerKlaxon was pre-armed). The alarm time is on the engine's
+ * time base, so the first stage reached converts it to an elapsedRealtime()
+ * anchor, see RetroTimer.toElapsedRealtime(), and each stage is measured
+ * against that anchor on the elapsedRealtime() clock. Changes to the wall
+ * clock therefore do not show up as latency.
+ *
+ * Kept in a ring of fixed-width records in a memory mapped file, like the
+ * TriggerStats. Only the first time a stage is reached counts. getSummary()
+ * gives the p50 and p99 latency per stage.
+ */
+final class AlertLatency {
+    /** AlarmReceiver got the alarm, or the pre-armed TimerKlaxon went off */
+    public static final int STAGE_TRIGGER = 0;
+    /** TimerKlaxon created */
+    public static final int STAGE_KLAXON_CREATE = 1;
+    /** TimerKlaxon started ringing */
+    public static final int STAGE_KLAXON_START = 2;
+    /** The triggered notification posted */
+    public static final int STAGE_NOTIFIED = 3;
+    /** Playback started */
+    public static final int STAGE_PLAYING = 4;
+    /** Vibrator started */
+    public static final int STAGE_VIBRATING = 5;
+    /** TimerAlert created */
+    public static final int STAGE_ALERT_CREATE = 6;
+    /** TimerAlert drawn for the first time */
+    public static final int STAGE_ALERT_DRAWN = 7;
+
+    private static final int NUM_STAGES = 8;
+    private static final String[] STAGE_NAMES = new String[] { "Trigger",
+            "Klaxon created", "Klaxon started", "Notified", "Playing",
+            "Vibrating", "Alert created", "Alert drawn" };
+
+    /** Number of alarms kept before the oldest ones are overwritten */
+    public static final int CAPACITY = 64;
+
+    private static final String FILENAME = "alertlatency";
+    private static final int MAGIC = 0x52544c31;
+
+    /* Marks a stage that was not reached */
+    private static final int UNSET = Integer.MIN_VALUE;
+
+    /*
+     * Header layout: int magic, int capacity, long number of records written
+     */
+    private static final int HEADER_MAGIC = 0;
+    private static final int HEADER_CAPACITY = 4;
+    private static final int HEADER_COUNT = 8;
+    private static final int HEADER_SIZE = 16;
+
+    /*
+     * Record layout: long alarm time, long elapsedRealtime() at the alarm
+     * time, and an int per stage with its offset from that, in millis
+     */
+    private static final int RECORD_ALARM_TIME = 0;
+    private static final int RECORD_ANCHOR = 8;
+    private static final int RECORD_STAGES = 16;
+    private static final int RECORD_SIZE = RECORD_STAGES + 4 * NUM_STAGES;
+
+    private static final int FILE_SIZE = HEADER_SIZE + CAPACITY * RECORD_SIZE;
+
+    private static ByteBuffer sBuffer = null;
+
+    private AlertLatency() {
+    }
+
+    private static void init(Context c) {
+        if (sBuffer != null) {
+            return;
+        }
+
+        sBuffer = MappedFile.map(c, FILENAME, FILE_SIZE);
+        if (sBuffer.getInt(HEADER_MAGIC) != MAGIC
+                || sBuffer.getInt(HEADER_CAPACITY) != CAPACITY) {
+            sBuffer.putInt(HEADER_MAGIC, MAGIC);
+            sBuffer.putInt(HEADER_CAPACITY, CAPACITY);
+            sBuffer.putLong(HEADER_COUNT, 0);
+        }
+    }
+
+    /** Records that the alarm at alarmTime reached the given stage now */
+    public static void mark(Context c, long alarmTime, int stage) {
+        mark(c, alarmTime, stage, SystemClock.elapsedRealtime());
+    }
+
+    /**
+     * Records that the alarm at alarmTime reached the given stage at the
+     * given SystemClock.elapsedRealtime()
+     */
+    public static synchronized void mark(Context c, long alarmTime,
+            int stage, long elapsed) {
+        init(c);
+        int rec = findRecord(c, alarmTime);
+        int slot = rec + RECORD_STAGES + 4 * stage;
+        if (sBuffer.getInt(slot) == UNSET) {
+            long offset = elapsed - sBuffer.getLong(rec + RECORD_ANCHOR);
+            sBuffer.putInt(slot, (int) Math.max(Integer.MIN_VALUE + 1,
+                    Math.min(Integer.MAX_VALUE, offset)));
+        }
+    }
+
+    /*
+     * Returns the record of the alarm at alarmTime, starting a new one if it
+     * is not the latest
+     */
+    private static int findRecord(Context c, long alarmTime) {
+        long count = sBuffer.getLong(HEADER_COUNT);
+        if (count > 0) {
+            int last = HEADER_SIZE + (int) ((count - 1) % CAPACITY)
+                    * RECORD_SIZE;
+            if (sBuffer.getLong(last + RECORD_ALARM_TIME) == alarmTime) {
+                return last;
+            }
+        }
+
+        int rec = HEADER_SIZE + (int) (count % CAPACITY) * RECORD_SIZE;
+        sBuffer.putLong(rec + RECORD_ALARM_TIME, alarmTime);
+        // Where the elapsedRealtime() clock was at the alarm time
+        sBuffer.putLong(rec + RECORD_ANCHOR,
+                RetroTimer.toElapsedRealtime(c, alarmTime));
+        for (int i = 0; i < NUM_STAGES; i++) {
+            sBuffer.putInt(rec + RECORD_STAGES + 4 * i, UNSET);
+        }
+        sBuffer.putLong(HEADER_COUNT, count + 1);
+        return rec;
+    }
+
+    /**
+     * Returns a human readable summary of the latency per stage of the
+     * recorded alarms, for debugging
+     */
+    public static synchronized String getSummary(Context c) {
+        init(c);
+        int n = (int) Math.min(sBuffer.getLong(HEADER_COUNT), CAPACITY);
+
+        StringBuilder s = new StringBuilder();
+        s.append("Latency per stage, last ").append(n).append(" alarms\n\n");
+        int[] sorted = new int[n];
+        for (int stage = 0; stage < NUM_STAGES; stage++) {
+            int m = 0;
+            for (int i = 0; i < n; i++) {
+                int offset = sBuffer.getInt(HEADER_SIZE + i * RECORD_SIZE
+                        + RECORD_STAGES + 4 * stage);
+                if (offset != UNSET) {
+                    sorted[m++] = offset;
+                }
+            }
+            if (m == 0) {
+                continue;
+            }
+            Arrays.sort(sorted, 0, m);
+
+            s.append(STAGE_NAMES[stage]).append(": p50 ")
+                    .append(TriggerStats.percentile(sorted, m, 50))
+                    .append(" ms, p99 ")
+                    .append(TriggerStats.percentile(sorted, m, 99))
+                    .append(" ms, max ").append(sorted[m - 1])
+                    .append(" ms (").append(m).append(" alarms)\n");
+        }
+        return s.toString();
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2010-2014  Eric Hansander
+ *
+ *  This file is part of Retro Timer.
+ *
+ *  Retro Timer is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Retro Timer is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Retro Timer.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.erichansander.retrotimer;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.os.SystemClock;
+
+/**
+ * AlarmScheduler backed by the AlarmManager
+ *
+ * The alarm is registered on the elapsedRealtime() clock, so changes to the
+ * wall clock do not move it, and delivered as an ALARM_TRIGGER_ACTION
+ * broadcast to AlarmReceiver, carrying the alarm time, version and timer id.
+ * All timers share the one PendingIntent, so scheduling one replaces the
+ * last. How it is registered depends on the API level, see AlarmStrategy.
+ *
+ * Each alarm also gets a plain wakeup TimerKlaxon.PREARM_MILLIS before it, an
+ * ALARM_PREARM_ACTION broadcast with the same extras, that lets TimerKlaxon
+ * get ready to ring. Replacing or cancelling the alarm releases a TimerKlaxon
+ * that got ready for it.
+ */
+class AndroidAlarmScheduler implements AlarmScheduler {
+    private final Context mContext;
+    private final AlarmStrategy mStrategy;
+
+    public AndroidAlarmScheduler(Context context) {
+        mContext = context.getApplicationContext();
+        mStrategy = AlarmStrategy.get();
+    }
+
+    public void schedule(int timerId, long alarmTime, long elapsedAt,
+            long version) {
+        Intent intent = new Intent(RetroTimer.ALARM_TRIGGER_ACTION);
+        intent.putExtra(RetroTimer.ALARM_TIME_EXTRA, alarmTime);
+        intent.putExtra(RetroTimer.ALARM_VERSION_EXTRA, version);
+        intent.putExtra(RetroTimer.ALARM_TIMER_ID_EXTRA, timerId);
+        PendingIntent sender = PendingIntent.getBroadcast(mContext, 0, intent,
+                PendingIntent.FLAG_CANCEL_CURRENT);
+
+        AlarmManager am = (AlarmManager) mContext
+                .getSystemService(Context.ALARM_SERVICE);
+        mStrategy.set(mContext, am, alarmTime, elapsedAt, sender);
+
+        intent.setAction(RetroTimer.ALARM_PREARM_ACTION);
+        PendingIntent prearm = PendingIntent.getBroadcast(mContext, 0,
+                intent, PendingIntent.FLAG_CANCEL_CURRENT);
+        long prearmAt = elapsedAt - TimerKlaxon.PREARM_MILLIS;
+        if (prearmAt > SystemClock.elapsedRealtime()) {
+            mStrategy.setWakeup(mContext, am, prearmAt, prearm);
+        } else {
+            // Too late to get ready, the alarm will do it all
+            am.cancel(prearm);
+        }
+
+        TimerKlaxon.disarm(mContext, timerId, version);
+    }
+
+    public void cancel() {
+        AlarmManager am = (AlarmManager) mContext
+                .getSystemService(Context.ALARM_SERVICE);
+        PendingIntent sender = PendingIntent.getBroadcast(mContext, 0,
+                new Intent(RetroTimer.ALARM_TRIGGER_ACTION),
+                PendingIntent.FLAG_CANCEL_CURRENT);
+        mStrategy.cancel(mContext, am, sender);
+        am.cancel(PendingIntent.getBroadcast(mContext, 0, new Intent(
+                RetroTimer.ALARM_PREARM_ACTION),
+                PendingIntent.FLAG_CANCEL_CURRENT));
+
+        TimerKlaxon.disarm(mContext, TimerKlaxon.NO_TIMER_ID, -1);
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2010-2014  Eric Hansander
+ *
+ *  This file is part of Retro Timer.
+ *
+ *  Retro Timer is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Retro Timer is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Retro Timer.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.erichansander.retrotimer;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.os.Build;
+import android.os.SystemClock;
+import android.provider.Settings;
+
+/**
+ * Clock backed by the system clocks
+ *
+ * The boot count is only known from API 24. Before that, TimerEngine has to
+ * tell boots apart by elapsedRealtime() going backwards, and by being told
+ * about BOOT_COMPLETED.
+ */
+class AndroidClock implements Clock {
+    /* Settings.Global.BOOT_COUNT, API 24 */
+    private static final String BOOT_COUNT = "boot_count";
+
+    private final int mBootCount;
+
+    public AndroidClock(Context context) {
+        // Does not change while the process lives, so look it up once
+        if (Build.VERSION.SDK_INT >= 24) {
+            mBootCount = BootCount.get(context);
+        } else {
+            mBootCount = BOOT_COUNT_UNKNOWN;
+        }
+    }
+
+    public long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    public long elapsedRealtime() {
+        return SystemClock.elapsedRealtime();
+    }
+
+    public int getBootCount() {
+        return mBootCount;
+    }
+
+    /* Settings.Global is API 17, so keep it out of AndroidClock itself */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR1)
+    private static class BootCount {
+        static int get(Context context) {
+            return Settings.Global.getInt(context.getContentResolver(),
+                    BOOT_COUNT, BOOT_COUNT_UNKNOWN);
+        }
+    }
+}
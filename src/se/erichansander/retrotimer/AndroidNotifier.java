@@ -0,0 +1,240 @@
+/*
+ * Copyright (C) 2010-2014  Eric Hansander
+ *
+ *  This file is part of Retro Timer.
+ *
+ *  Retro Timer is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Retro Timer is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Retro Timer.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.erichansander.retrotimer;
+
+import android.app.Notification;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.support.v4.app.NotificationCompat;
+import android.text.format.DateFormat;
+
+/**
+ * Shows the NOTIF_SET_ID, NOTIF_TRIGGERED_ID and NOTIF_SILENCED_ID
+ * notifications
+ *
+ * One per process, see get(). The builder of each notification, its
+ * PendingIntent and the time formatter are created once and reused, so an
+ * update only changes the text. The ongoing notifications are not posted
+ * again if their content has not changed.
+ *
+ * Where the system can count down (API 24 and later), the NOTIF_SET_ID
+ * notification also shows the time left to the alarm, kept up to date by the
+ * system, so it is still only posted once per alarm. See
+ * CountdownNotification.
+ */
+class AndroidNotifier implements Notifier {
+    private static AndroidNotifier sInstance = null;
+
+    private final Context mContext;
+    private final NotificationManager mNotificationManager;
+
+    private final NotificationCompat.Builder mSetBuilder;
+    // Null if the device cannot count down
+    private final CountdownNotification mSetCountdown;
+    private final NotificationCompat.Builder mTriggeredBuilder;
+    private final NotificationCompat.Builder mSilencedBuilder;
+
+    /* Follows the locale and the 12/24 hour setting. Null until needed. */
+    private java.text.DateFormat mTimeFormat = null;
+
+    /*
+     * The alarm time shown by the NOTIF_SET_ID notification, or zero if not
+     * showing, and whether NOTIF_TRIGGERED_ID is showing. The silenced
+     * notification can be swiped away, so that one is always posted.
+     */
+    private long mSetShownFor = 0;
+    private boolean mTriggeredShown = false;
+
+    private AndroidNotifier(Context context) {
+        mContext = context;
+        mNotificationManager = (NotificationManager) context
+                .getSystemService(Context.NOTIFICATION_SERVICE);
+
+        // Launch the TimerSet activity when clicked
+        Intent viewAlarm = new Intent(context, TimerSet.class);
+        viewAlarm.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+        PendingIntent pendingView = PendingIntent.getActivity(context, 0,
+                viewAlarm, 0);
+
+        // Dismiss the alarm when clicked
+        PendingIntent pendingDismiss = PendingIntent.getBroadcast(context, 0,
+                new Intent(RetroTimer.ALARM_DISMISS_ACTION), 0);
+
+        mSetBuilder = new NotificationCompat.Builder(context)
+                .setContentIntent(pendingView)
+                .setDefaults(Notification.DEFAULT_LIGHTS).setOngoing(true)
+                .setSmallIcon(R.drawable.ic_stat_alarm_set)
+                .setContentTitle(context.getString(R.string.notify_set_label));
+        if (android.os.Build.VERSION.SDK_INT >= 24) {
+            mSetCountdown = CountdownNotification.create(context, pendingView);
+        } else {
+            mSetCountdown = null;
+        }
+        mTriggeredBuilder = new NotificationCompat.Builder(context)
+                .setContentIntent(pendingDismiss)
+                .setDefaults(Notification.DEFAULT_LIGHTS)
+                .setOngoing(true)
+                .setSmallIcon(R.drawable.ic_stat_alarm_triggered)
+                .setContentTitle(
+                        context.getString(R.string.notify_triggered_label))
+                .setContentText(
+                        context.getString(R.string.notify_triggered_text));
+        mSilencedBuilder = new NotificationCompat.Builder(context)
+                .setContentIntent(pendingView)
+                .setAutoCancel(true)
+                .setSmallIcon(R.drawable.ic_stat_alarm_triggered)
+                .setContentTitle(
+                        context.getString(R.string.notify_silenced_label));
+
+        /*
+         * Forget the time format when the locale or 12/24 hour setting
+         * changes, and show the alarm time again, in the new format or on the
+         * changed wall clock
+         */
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_LOCALE_CHANGED);
+        filter.addAction(Intent.ACTION_TIME_CHANGED);
+        context.registerReceiver(new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context c, Intent intent) {
+                synchronized (AndroidNotifier.this) {
+                    mTimeFormat = null;
+                    if (mSetShownFor != 0) {
+                        mNotificationManager.notify(RetroTimer.NOTIF_SET_ID,
+                                buildAlarmSet(mSetShownFor));
+                    }
+                }
+            }
+        }, filter);
+    }
+
+    /** Returns the notifier of this process, creating it on first call */
+    public static synchronized AndroidNotifier get(Context context) {
+        if (sInstance == null) {
+            sInstance = new AndroidNotifier(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /** Formats time, on TimerEngine's time base, as wall clock time */
+    private String formatTime(long time) {
+        if (mTimeFormat == null) {
+            mTimeFormat = DateFormat.getTimeFormat(mContext);
+        }
+        return mTimeFormat.format(toWallClock(time));
+    }
+
+    /**
+     * Returns the wall clock time, as the clock stands now, of time on
+     * TimerEngine's time base
+     */
+    private long toWallClock(long time) {
+        return System.currentTimeMillis()
+                + RetroTimer.getMillisUntil(mContext, time);
+    }
+
+    public synchronized void showAlarmSet(TimerState state) {
+        long alarmTime = state.getAlarmTime();
+        if (alarmTime == mSetShownFor) {
+            return;
+        }
+
+        /*
+         * Send the notification using the alarm id to easily identify the
+         * correct notification.
+         */
+        mNotificationManager.notify(RetroTimer.NOTIF_SET_ID,
+                buildAlarmSet(alarmTime));
+        mSetShownFor = alarmTime;
+    }
+
+    /**
+     * Builds the NOTIF_SET_ID notification, that when clicked will open
+     * TimerSet
+     */
+    public synchronized Notification buildAlarmSet(long alarmTime) {
+        String text = mContext.getString(R.string.notify_set_text,
+                formatTime(alarmTime));
+        if (mSetCountdown != null) {
+            return mSetCountdown.build(toWallClock(alarmTime), text);
+        }
+        return mSetBuilder.setContentText(text).build();
+    }
+
+    public synchronized void cancelAlarmSet() {
+        mNotificationManager.cancel(RetroTimer.NOTIF_SET_ID);
+        mSetShownFor = 0;
+    }
+
+    /**
+     * Builds the NOTIF_TRIGGERED_ID notification, that when clicked will
+     * dismiss the alarm
+     */
+    public synchronized Notification buildTriggered() {
+        return mTriggeredBuilder.build();
+    }
+
+    /**
+     * Shows the NOTIF_TRIGGERED_ID notification for the timer with the given
+     * id, built by buildTriggered() or, if null, built here. For the dial
+     * timer, it replaces the NOTIF_SET_ID one, which is left for other timers.
+     */
+    public synchronized void showTriggered(int timerId,
+            Notification triggered) {
+        if (timerId == TimerEngine.DIAL_TIMER_ID) {
+            cancelAlarmSet();
+        }
+        if (mTriggeredShown) {
+            return;
+        }
+        mNotificationManager.notify(RetroTimer.NOTIF_TRIGGERED_ID,
+                triggered != null ? triggered : buildTriggered());
+        mTriggeredShown = true;
+    }
+
+    public synchronized void cancelTriggered() {
+        mNotificationManager.cancel(RetroTimer.NOTIF_TRIGGERED_ID);
+        mTriggeredShown = false;
+    }
+
+    /**
+     * Replaces the NOTIF_TRIGGERED_ID notification with the NOTIF_SILENCED_ID
+     * one, saying when the alarm at alarmTime went off
+     */
+    public synchronized void showSilenced(long alarmTime) {
+        // We have to cancel the original notification since it is in the
+        // ongoing section and we want the "killed" notification to be a plain
+        // notification.
+        cancelTriggered();
+        showMissed(alarmTime);
+    }
+
+    public synchronized void showMissed(long alarmTime) {
+        mNotificationManager.notify(
+                RetroTimer.NOTIF_SILENCED_ID,
+                mSilencedBuilder.setContentText(
+                        mContext.getString(R.string.notify_silenced_text,
+                                formatTime(alarmTime))).build());
+    }
+}
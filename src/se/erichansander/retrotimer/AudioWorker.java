@@ -0,0 +1,217 @@
+/*
+ * Copyright (C) 2010-2014  Eric Hansander
+ *
+ *  This file is part of Retro Timer.
+ *
+ *  Retro Timer is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Retro Timer is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Retro Timer.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.erichansander.retrotimer;
+
+import android.content.Context;
+import android.media.AudioManager;
+import android.media.MediaPlayer;
+import android.media.MediaPlayer.OnErrorListener;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.os.Process;
+import android.telephony.TelephonyManager;
+
+/**
+ * Owns the alarm sound and the audio focus, on a thread of its own
+ * 
+ * Preparing the sound, looking up the call state and alarm volume, and
+ * requesting audio focus are all calls into system services, that may block
+ * for a while. TimerKlaxon posts commands here instead, so that its main
+ * thread, which is also the UI thread of TimerAlert, never waits for audio.
+ * 
+ * Commands are carried out in the order they were posted.
+ */
+class AudioWorker implements Handler.Callback {
+
+    /*
+     * Comment from the DeskClock app:
+     * 
+     * Volume suggested by media team for in-call alarms.
+     */
+    private static final float IN_CALL_VOLUME = 0.125f;
+
+    private static final int MSG_PREPARE = 1;
+    private static final int MSG_PLAY = 2;
+    private static final int MSG_STOP = 3;
+    private static final int MSG_QUIT = 4;
+
+    private final Context mContext;
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+    private final Handler mMainHandler;
+    private final Runnable mOnError;
+
+    // Only used on the worker thread, created by the first command
+    private AlarmSound mSound = null;
+    private AudioManager mAudioManager;
+    private TelephonyManager mTelephonyManager;
+    private AudioFocusHelper mAudioFocusHelper;
+    private boolean mHaveFocus = false;
+    private long mAlarmTime = 0;
+
+    /**
+     * Starts the worker thread. onError is run on the calling thread, should
+     * the sound fail while playing.
+     */
+    public AudioWorker(Context context, Runnable onError) {
+        mContext = context;
+        mOnError = onError;
+        mMainHandler = new Handler();
+
+        mThread = new HandlerThread("AudioWorker",
+                Process.THREAD_PRIORITY_AUDIO);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper(), this);
+    }
+
+    /** Gets the sound ready, so that play() can start it at once */
+    public void prepare() {
+        mHandler.sendEmptyMessage(MSG_PREPARE);
+    }
+
+    /**
+     * Starts playing the alarm at alarmTime, unless the alarm volume is zero
+     */
+    public void play(long alarmTime) {
+        mHandler.sendMessage(mHandler.obtainMessage(MSG_PLAY,
+                Long.valueOf(alarmTime)));
+    }
+
+    /** Stops playing, and releases the sound */
+    public void stop() {
+        mHandler.sendEmptyMessage(MSG_STOP);
+    }
+
+    /** Stops playing, and ends the worker thread, once it gets to it */
+    public void quit() {
+        mHandler.sendEmptyMessage(MSG_QUIT);
+    }
+
+    public boolean handleMessage(Message msg) {
+        if (mSound == null) {
+            init();
+        }
+
+        switch (msg.what) {
+        case MSG_PREPARE:
+            handlePrepare();
+            break;
+        case MSG_PLAY:
+            mAlarmTime = (Long) msg.obj;
+            handlePlay();
+            break;
+        case MSG_STOP:
+            handleStop();
+            break;
+        case MSG_QUIT:
+            handleStop();
+            mThread.quit();
+            break;
+        default:
+            return false;
+        }
+        return true;
+    }
+
+    private void init() {
+        mSound = new AlarmSound(mContext, new OnErrorListener() {
+            public boolean onError(MediaPlayer mp, int what, int extra) {
+                TinyTracelog.trace(TraceEvent.KLAXON_MEDIA_ERROR, what, extra);
+                handleStop();
+                mMainHandler.post(mOnError);
+                return true;
+            }
+        }, new Runnable() {
+            public void run() {
+                AlertLatency.mark(mContext, mAlarmTime,
+                        AlertLatency.STAGE_PLAYING);
+            }
+        });
+        mAudioManager = (AudioManager) mContext
+                .getSystemService(Context.AUDIO_SERVICE);
+        mTelephonyManager = (TelephonyManager) mContext
+                .getSystemService(Context.TELEPHONY_SERVICE);
+        if (android.os.Build.VERSION.SDK_INT >= 8) {
+            mAudioFocusHelper = new AudioFocusHelper(mContext);
+        } else {
+            mAudioFocusHelper = null;
+        }
+    }
+
+    /*
+     * Check if we are in a call. If we are, use the in-call alarm resource at
+     * a low volume to not disrupt the call.
+     */
+    private boolean isInCall() {
+        return mTelephonyManager.getCallState() != TelephonyManager.CALL_STATE_IDLE;
+    }
+
+    private void handlePrepare() {
+        boolean inCall = isInCall();
+        try {
+            mSound.prepare(inCall ? R.raw.in_call_alarm : R.raw.classic_alarm,
+                    inCall ? IN_CALL_VOLUME : 1f);
+        } catch (Exception ex) {
+            // play() will try again
+            TinyTracelog.trace(TraceEvent.KLAXON_PLAY_FAILED);
+        }
+    }
+
+    private void handlePlay() {
+        int res;
+        float volume;
+        if (isInCall()) {
+            TinyTracelog.trace(TraceEvent.KLAXON_RING_IN_CALL);
+            res = R.raw.in_call_alarm;
+            volume = IN_CALL_VOLUME;
+        } else {
+            TinyTracelog.trace(TraceEvent.KLAXON_RING_CLASSIC);
+            res = R.raw.classic_alarm;
+            volume = 1f;
+        }
+
+        try {
+            // do not play alarms if stream volume is 0
+            int streamVolume = mAudioManager
+                    .getStreamVolume(AudioManager.STREAM_ALARM);
+            TinyTracelog.trace(TraceEvent.KLAXON_VOLUME, streamVolume);
+            if (streamVolume != 0) {
+                if (mAudioFocusHelper != null && !mHaveFocus) {
+                    mAudioFocusHelper.requestFocus();
+                    mHaveFocus = true;
+                }
+                mSound.play(res, volume);
+            }
+        } catch (Exception ex) {
+            // Failed to play ring tone. Not much we can do to save
+            // the situation though...
+            TinyTracelog.trace(TraceEvent.KLAXON_PLAY_FAILED);
+        }
+    }
+
+    private void handleStop() {
+        mSound.stop();
+        if (mHaveFocus) {
+            mAudioFocusHelper.abandonFocus();
+            mHaveFocus = false;
+        }
+    }
+}
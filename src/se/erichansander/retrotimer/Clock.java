@@ -0,0 +1,45 @@
+/*
+ * Copyright (C) 2010-2014  Eric Hansander
+ *
+ *  This file is part of Retro Timer.
+ *
+ *  Retro Timer is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Retro Timer is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Retro Timer.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.erichansander.retrotimer;
+
+/**
+ * Source of the current time for TimerEngine
+ *
+ * The engine counts on the elapsedRealtime() clock, which is monotonic and
+ * keeps counting in deep sleep, and only looks at the wall clock to place it
+ * in time once per boot. Lets the engine run on virtual time off-device. On
+ * device, see AndroidClock.
+ */
+public interface Clock {
+    /** Returned by getBootCount() when the boot count is not known */
+    public static final int BOOT_COUNT_UNKNOWN = -1;
+
+    /** Returns the current wall clock time, in millis since epoch */
+    long currentTimeMillis();
+
+    /** Returns the millis since boot, counting time in deep sleep */
+    long elapsedRealtime();
+
+    /**
+     * Returns the number of times the device has booted, or
+     * BOOT_COUNT_UNKNOWN, to tell when elapsedRealtime() has been reset
+     */
+    int getBootCount();
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2010-2014  Eric Hansander
+ *
+ *  This file is part of Retro Timer.
+ *
+ *  Retro Timer is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Retro Timer is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Retro Timer.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.erichansander.retrotimer;
+
+import java.lang.reflect.Method;
+
+import android.annotation.TargetApi;
+import android.app.Notification;
+import android.app.PendingIntent;
+import android.content.Context;
+
+/**
+ * Builds the NOTIF_SET_ID notification with a chronometer that counts down to
+ * the alarm, for API 24 and later
+ *
+ * The system then shows the time left, without the app being woken up to
+ * post the notification again. Before API 24 chronometers only count up, so
+ * AndroidNotifier shows the alarm time instead.
+ *
+ * The support library of the app is too old to know about counting down, so
+ * this uses the platform builder, and has to be a class of its own, see
+ * ExactAlarmStrategy. setChronometerCountDown() is looked up by reflection,
+ * once.
+ */
+@TargetApi(17)
+class CountdownNotification {
+    private final Notification.Builder mBuilder;
+
+    private CountdownNotification(Notification.Builder builder) {
+        mBuilder = builder;
+    }
+
+    /**
+     * Returns a builder for the notification, that opens contentIntent when
+     * clicked, or null if the device cannot count down
+     */
+    public static CountdownNotification create(Context context,
+            PendingIntent contentIntent) {
+        Notification.Builder builder = new Notification.Builder(context)
+                .setContentIntent(contentIntent)
+                .setDefaults(Notification.DEFAULT_LIGHTS).setOngoing(true)
+                .setSmallIcon(R.drawable.ic_stat_alarm_set)
+                .setContentTitle(context.getString(R.string.notify_set_label))
+                .setShowWhen(true).setUsesChronometer(true);
+        try {
+            Method countDown = Notification.Builder.class.getMethod(
+                    "setChronometerCountDown", boolean.class);
+            countDown.invoke(builder, true);
+        } catch (Exception e) {
+            return null;
+        }
+        return new CountdownNotification(builder);
+    }
+
+    /**
+     * Builds the notification, counting down to when, in wall clock millis
+     * since epoch
+     */
+    public Notification build(long when, String text) {
+        return mBuilder.setWhen(when).setContentText(text).build();
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2010-2014  Eric Hansander
+ *
+ *  This file is part of Retro Timer.
+ *
+ *  Retro Timer is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Retro Timer is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Retro Timer.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.erichansander.retrotimer;
+
+/**
+ * The math behind the timer dial: the scale strings, where the letters of the
+ * scale go, and how a drag turns the dial.
+ *
+ * Plain Java, so it can be used off-device too, e.g. in the benchmarks.
+ */
+final class DialMath {
+
+    /** The max number of minutes the countdown can be set to */
+    public static final int MAX_MINUTES = 89;
+
+    /** How many minutes a drag across the whole width of the dial turns it */
+    private static final float MINUTES_PER_WIDTH = 15f;
+
+    private DialMath() {
+    }
+
+    /**
+     * Returns a string of given length, centered on given minute
+     * 
+     * E.g. length = 5 and centerMinute 8 would give: ....1
+     * 
+     * Only used to build the scale table, so it need not be fast.
+     * 
+     * @precond length must be odd
+     */
+    static String getScaleString(int length, int centerMinute) {
+        /*
+         * The string might become slightly longer then length while we are
+         * building it, so add some spare. It will be trimmed before we return
+         * it.
+         */
+        StringBuilder s = new StringBuilder(length + 3);
+        int bef = 0;
+        int aft = 0;
+
+        // Start with the center minute number
+        if (centerMinute % 5 == 0) {
+            s.append(centerMinute);
+            if (centerMinute > 5)
+                bef++;
+        } else {
+            s.append(".");
+        }
+
+        /*
+         * work our way outward, in both the positive and negative directions
+         * from centerMinute
+         */
+        for (int i = 1; i <= length / 2; i++) {
+            int min;
+
+            min = centerMinute - i;
+            if (min < 0) {
+                s.insert(0, " ");
+            } else if (min % 5 == 0) {
+                s.insert(0, min);
+                if (min > 5)
+                    bef++;
+            } else {
+                s.insert(0, ".");
+            }
+            bef++;
+
+            min = centerMinute + i;
+            if (min > MAX_MINUTES) {
+                s.append(" ");
+            } else if (min % 5 == 0) {
+                s.append(min);
+                if (min > 5)
+                    aft++;
+            } else {
+                s.append(".");
+            }
+            aft++;
+        }
+
+        /*
+         * since the two-digit numbers (10, 15...) may have caused the
+         * centerMinute not to be precisely in the middle, we need to center it,
+         * using substring.
+         */
+        return s.substring(bef - length / 2, bef - length / 2 + length);
+    }
+
+    /**
+     * Returns the scale strings for all minutes 0..MAX_MINUTES, for a scale
+     * of given length
+     */
+    static char[][] buildScaleTable(int length) {
+        char[][] table = new char[MAX_MINUTES + 1][];
+        for (int minute = 0; minute <= MAX_MINUTES; minute++) {
+            table[minute] = getScaleString(length, minute).toCharArray();
+        }
+        return table;
+    }
+
+    /**
+     * Returns how many letters fit on a path of given length. Always odd, so
+     * that there is a letter in the middle.
+     */
+    static int lettersInScale(float pathLen, float letterWidth) {
+        int letters = Math.round(pathLen / letterWidth);
+        if (letters % 2 == 0)
+            letters -= 1;
+        return letters;
+    }
+
+    /**
+     * Returns how far into the path the first letter should start, for the
+     * scale to be centered on it
+     */
+    static float scaleStartOffset(float pathLen, float letterWidth,
+            int letters, float density) {
+        return (pathLen - letterWidth * letters) / 2 - letterWidth
+                / (12 * density);
+    }
+
+    /**
+     * Places the letters of the scale along path, with the first letter
+     * starting startOffset into the path. Writes the position and rotation (in
+     * degrees) of each letter into x, y and angle. Does not allocate; pos and
+     * tan are scratch arrays of two floats each.
+     */
+    static void layoutLetters(ScalePath path, float startOffset,
+            float letterWidth, float[] x, float[] y, float[] angle,
+            float[] pos, float[] tan) {
+        for (int i = 0; i < x.length; i++) {
+            // Place and rotate each letter by the middle of it, like
+            // drawTextOnPath() does
+            path.getPosTan(startOffset + (i + 0.5f) * letterWidth, pos, tan);
+            x[i] = pos[0];
+            y[i] = pos[1];
+            angle[i] = (float) Math.toDegrees(Math.atan2(tan[1], tan[0]));
+        }
+    }
+
+    /**
+     * Returns the millis left after dragging the dial dx pixels, from where it
+     * was at millisBefore, on a dial width pixels wide. Rounded to the closest
+     * whole minute, and kept within 0..MAX_MINUTES.
+     */
+    static long millisForTurn(long millisBefore, float dx, float width) {
+        long millis = millisBefore
+                + Math.round((-dx / width) * MINUTES_PER_WIDTH * 60000f);
+
+        // Round to the closest full minute
+        millis = Math.round(millis / 60000f) * 60000;
+
+        if (millis <= 0) {
+            millis = 0;
+        } else if (millis > MAX_MINUTES * 60000L) {
+            millis = MAX_MINUTES * 60000L;
+        }
+        return millis;
+    }
+}
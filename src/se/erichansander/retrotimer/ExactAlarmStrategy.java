@@ -0,0 +1,58 @@
+/*
+ * Copyright (C) 2010-2014  Eric Hansander
+ *
+ *  This file is part of Retro Timer.
+ *
+ *  Retro Timer is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Retro Timer is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Retro Timer.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.erichansander.retrotimer;
+
+import android.annotation.TargetApi;
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.os.Build;
+
+/**
+ * AlarmStrategy for KitKat and later, where set() is inexact
+ *
+ * Since "Dalvik in Android 1.x was very conservative and would crash if you try
+ * to load a class that contains a reference that it cannot resolve", this has
+ * to be a class of its own.
+ * 
+ * See
+ * http://stackoverflow.com/questions/13444255/could-not-find-method-
+ * from-the-newer-api-with-using-targetapi-annotation
+ */
+@TargetApi(Build.VERSION_CODES.KITKAT)
+class ExactAlarmStrategy extends AlarmStrategy {
+    @Override
+    public int getId() {
+        return STRATEGY_EXACT;
+    }
+
+    @Override
+    public void set(Context context, AlarmManager am, long alarmTime,
+            long elapsedAt, PendingIntent operation) {
+        am.setExact(AlarmManager.ELAPSED_REALTIME_WAKEUP, elapsedAt,
+                operation);
+    }
+
+    @Override
+    public void setWakeup(Context context, AlarmManager am, long wakeAt,
+            PendingIntent operation) {
+        am.setExact(AlarmManager.ELAPSED_REALTIME_WAKEUP, wakeAt, operation);
+    }
+}
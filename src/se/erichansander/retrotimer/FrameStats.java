@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2010-2014  Eric Hansander
+ *
+ *  This file is part of Retro Timer.
+ *
+ *  Retro Timer is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Retro Timer is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Retro Timer.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.erichansander.retrotimer;
+
+/**
+ * Opt-in rendering instrumentation for the timer views
+ *
+ * Records how long TimerView.onDraw takes, and the latency from a touch event
+ * reaching TimerSetView until the resulting frame has been drawn. With HW
+ * acceleration, the draw time is the time to record the frame, not to render
+ * it on the GPU.
+ *
+ * Turned off by default, in which case each probe costs a flag check.
+ */
+class FrameStats {
+
+    /** onDraw duration, in micros, 0.1 ms buckets up to 50 ms */
+    private static final LatencyHistogram sDrawMicros = new LatencyHistogram(
+            100, 500);
+    /** Touch event to drawn latency, in micros, 0.25 ms buckets up to 200 ms */
+    private static final LatencyHistogram sInputMicros = new LatencyHistogram(
+            250, 800);
+
+    private static volatile boolean sEnabled = false;
+
+    /* Time of the first touch event not yet drawn, or zero. UI thread only. */
+    private static long sPendingInputNanos = 0;
+
+    public static void setEnabled(boolean enabled) {
+        sEnabled = enabled;
+    }
+
+    public static boolean isEnabled() {
+        return sEnabled;
+    }
+
+    /**
+     * Called when a touch event has turned the dial, with System.nanoTime()
+     * of when it arrived
+     */
+    public static void onInput(long nanos) {
+        if (sPendingInputNanos == 0) {
+            sPendingInputNanos = nanos;
+        }
+    }
+
+    /**
+     * Forgets the touch event not yet drawn, if any, e.g. when the gesture
+     * ends, so it is not measured against some later, unrelated frame
+     */
+    public static void clearInput() {
+        sPendingInputNanos = 0;
+    }
+
+    /** Called when a frame has been drawn, with System.nanoTime() values */
+    public static void onDrawn(long startNanos, long endNanos) {
+        sDrawMicros.record((endNanos - startNanos) / 1000);
+        if (sPendingInputNanos != 0) {
+            sInputMicros.record((endNanos - sPendingInputNanos) / 1000);
+            sPendingInputNanos = 0;
+        }
+    }
+
+    /** Writes the percentiles to the TinyTracelog, in micros */
+    public static void trace() {
+        TinyTracelog.trace(TraceEvent.FRAME_DRAW_P50_P95,
+                sDrawMicros.getPercentile(50), sDrawMicros.getPercentile(95));
+        TinyTracelog.trace(TraceEvent.FRAME_DRAW_P99_COUNT,
+                sDrawMicros.getPercentile(99), sDrawMicros.getCount());
+        TinyTracelog.trace(TraceEvent.FRAME_INPUT_P50_P95,
+                sInputMicros.getPercentile(50), sInputMicros.getPercentile(95));
+        TinyTracelog.trace(TraceEvent.FRAME_INPUT_P99_COUNT,
+                sInputMicros.getPercentile(99), sInputMicros.getCount());
+    }
+
+    /** Returns a human readable summary, for debugging */
+    public static String getSummary() {
+        return "onDraw\n" + summarize(sDrawMicros) + "\n\nTouch to drawn\n"
+                + summarize(sInputMicros);
+    }
+
+    public static void clear() {
+        sDrawMicros.clear();
+        sInputMicros.clear();
+    }
+
+    private static String summarize(LatencyHistogram h) {
+        return "p50 " + millis(h.getPercentile(50)) + " ms, p95 "
+                + millis(h.getPercentile(95)) + " ms, p99 "
+                + millis(h.getPercentile(99)) + " ms, max "
+                + millis(h.getMax()) + " ms (" + h.getCount() + " frames)";
+    }
+
+    private static String millis(long micros) {
+        return (micros / 1000) + "." + (micros % 1000) / 100;
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2010-2014  Eric Hansander
+ *
+ *  This file is part of Retro Timer.
+ *
+ *  Retro Timer is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Retro Timer is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Retro Timer.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.erichansander.retrotimer;
+
+/**
+ * Fixed-size histogram of latency samples
+ *
+ * Samples are counted in numBuckets buckets of bucketWidth each, starting at
+ * zero, with one extra bucket for everything larger. All memory is allocated
+ * up front, so recording a sample never allocates. The unit of the samples is
+ * up to the user.
+ *
+ * Plain Java, so it can be used off-device too.
+ */
+public class LatencyHistogram {
+    private final long mBucketWidth;
+    private final long[] mBuckets;
+    private long mCount = 0;
+    private long mMax = 0;
+
+    public LatencyHistogram(long bucketWidth, int numBuckets) {
+        mBucketWidth = bucketWidth;
+        mBuckets = new long[numBuckets + 1];
+    }
+
+    /** Adds a sample. Negative samples are counted as zero. */
+    public synchronized void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        long bucket = value / mBucketWidth;
+        if (bucket >= mBuckets.length - 1) {
+            bucket = mBuckets.length - 1;
+        }
+        mBuckets[(int) bucket]++;
+        mCount++;
+        if (value > mMax) {
+            mMax = value;
+        }
+    }
+
+    /** Returns the number of samples recorded */
+    public synchronized long getCount() {
+        return mCount;
+    }
+
+    /** Returns the largest sample recorded */
+    public synchronized long getMax() {
+        return mMax;
+    }
+
+    /**
+     * Returns the given percentile (0..100) of the samples, rounded up to the
+     * upper edge of its bucket, or zero if there are no samples.
+     */
+    public synchronized long getPercentile(double percentile) {
+        if (mCount == 0) {
+            return 0;
+        }
+
+        long target = (long) Math.ceil(percentile / 100 * mCount);
+        if (target < 1) {
+            target = 1;
+        }
+        long seen = 0;
+        for (int i = 0; i < mBuckets.length - 1; i++) {
+            seen += mBuckets[i];
+            if (seen >= target) {
+                return Math.min((i + 1) * mBucketWidth, mMax);
+            }
+        }
+        return mMax;
+    }
+
+    /** Forgets all samples */
+    public synchronized void clear() {
+        for (int i = 0; i < mBuckets.length; i++) {
+            mBuckets[i] = 0;
+        }
+        mCount = 0;
+        mMax = 0;
+    }
+}
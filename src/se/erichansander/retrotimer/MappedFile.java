@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2010-2014  Eric Hansander
+ *
+ *  This file is part of Retro Timer.
+ *
+ *  Retro Timer is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Retro Timer is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Retro Timer.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.erichansander.retrotimer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import android.content.Context;
+
+/**
+ * Small files in the app's files dir, memory mapped so that writes to them
+ * survive the process being killed without any I/O calls
+ */
+final class MappedFile {
+
+    private MappedFile() {
+    }
+
+    /**
+     * Maps the first size bytes of the named file, creating it if needed. If
+     * the file cannot be mapped, returns a buffer on the heap instead, which
+     * won't survive the process, but is better than nothing.
+     */
+    static ByteBuffer map(Context c, String name, int size) {
+        File file = new File(c.getFilesDir(), name);
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "rw");
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                    size);
+        } catch (IOException e) {
+            return ByteBuffer.allocate(size);
+        } finally {
+            if (raf != null) {
+                try {
+                    // the mapping stays valid after the file is closed
+                    raf.close();
+                } catch (IOException e) {
+                    // nothing to do about it
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes buffer out to disk, if it is mapped. Only needed to survive a
+     * device crash. Does I/O, so should only be called from a background
+     * thread.
+     */
+    static void sync(ByteBuffer buffer) {
+        if (buffer instanceof MappedByteBuffer) {
+            ((MappedByteBuffer) buffer).force();
+        }
+    }
+}
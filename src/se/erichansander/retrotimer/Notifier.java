@@ -19,15 +19,17 @@
 
 package se.erichansander.retrotimer;
 
-import android.annotation.TargetApi;
-import android.app.AlarmManager;
-import android.app.PendingIntent;
-import android.os.Build;
+/**
+ * Tells the user about the alarm that is set, and about timers that were
+ * missed. On device, the notifications.
+ */
+public interface Notifier {
+    /** Shows that the alarm of state is set */
+    void showAlarmSet(TimerState state);
+
+    /** Stops showing that an alarm is set */
+    void cancelAlarmSet();
 
-@TargetApi(Build.VERSION_CODES.KITKAT)
-public class AlarmManagerKitKat {
-    public static void set(AlarmManager am, long alarmTime,
-            PendingIntent sender) {
-        am.setExact(AlarmManager.RTC_WAKEUP, alarmTime, sender);
-    }
+    /** Shows that the alarm at alarmTime was missed, and did not ring */
+    void showMissed(long alarmTime);
 }
@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2010-2014  Eric Hansander
+ *
+ *  This file is part of Retro Timer.
+ *
+ *  Retro Timer is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Retro Timer is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Retro Timer.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.erichansander.retrotimer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+
+/**
+ * Decodes the alarm sound, a raw audio resource, to 16 bit PCM with
+ * MediaExtractor and MediaCodec, so that AlarmSound can play it from memory.
+ * 
+ * MediaCodec and MediaExtractor came with API level 16, so they are only
+ * referenced from here. AlarmSound only uses this class on API level 16 and
+ * up, so that Dalvik on older devices never loads it, and never fails to
+ * verify it.
+ */
+@TargetApi(16)
+class PcmDecoder {
+
+    private static final long TIMEOUT_MICROS = 10000;
+
+    /** Decodes the whole of the raw resource res. Slow, so not on UI thread. */
+    public static AlarmSound.Pcm decode(Context context, int res)
+            throws IOException {
+        AssetFileDescriptor afd = context.getResources()
+                .openRawResourceFd(res);
+        if (afd == null) {
+            throw new IOException("Resource is compressed: " + res);
+        }
+
+        MediaExtractor extractor = new MediaExtractor();
+        MediaCodec codec = null;
+        try {
+            extractor.setDataSource(afd.getFileDescriptor(),
+                    afd.getStartOffset(), afd.getLength());
+            if (extractor.getTrackCount() < 1) {
+                throw new IOException("No audio track: " + res);
+            }
+            MediaFormat format = extractor.getTrackFormat(0);
+            extractor.selectTrack(0);
+
+            codec = MediaCodec.createDecoderByType(format
+                    .getString(MediaFormat.KEY_MIME));
+            codec.configure(format, null, null, 0);
+            codec.start();
+
+            return drain(extractor, codec, format);
+        } finally {
+            if (codec != null) {
+                codec.release();
+            }
+            extractor.release();
+            afd.close();
+        }
+    }
+
+    private static AlarmSound.Pcm drain(MediaExtractor extractor,
+            MediaCodec codec, MediaFormat format) {
+        int sampleRate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+        int channels = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+
+        ByteBuffer[] inputs = codec.getInputBuffers();
+        ByteBuffer[] outputs = codec.getOutputBuffers();
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+
+        // Grown by doubling; a few seconds of mono 44.1 kHz to start with
+        short[] samples = new short[1 << 17];
+        int numSamples = 0;
+
+        boolean inputDone = false;
+        boolean outputDone = false;
+        while (!outputDone) {
+            if (!inputDone) {
+                int in = codec.dequeueInputBuffer(TIMEOUT_MICROS);
+                if (in >= 0) {
+                    int size = extractor.readSampleData(inputs[in], 0);
+                    if (size < 0) {
+                        codec.queueInputBuffer(in, 0, 0, 0,
+                                MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                        inputDone = true;
+                    } else {
+                        codec.queueInputBuffer(in, 0, size,
+                                extractor.getSampleTime(), 0);
+                        extractor.advance();
+                    }
+                }
+            }
+
+            int out = codec.dequeueOutputBuffer(info, TIMEOUT_MICROS);
+            if (out >= 0) {
+                ByteBuffer buf = outputs[out];
+                buf.position(info.offset);
+                buf.limit(info.offset + info.size);
+                ShortBuffer pcm = buf.order(ByteOrder.nativeOrder())
+                        .asShortBuffer();
+                int n = pcm.remaining();
+                if (numSamples + n > samples.length) {
+                    short[] grown = new short[Math.max(samples.length * 2,
+                            numSamples + n)];
+                    System.arraycopy(samples, 0, grown, 0, numSamples);
+                    samples = grown;
+                }
+                pcm.get(samples, numSamples, n);
+                numSamples += n;
+                buf.clear();
+                codec.releaseOutputBuffer(out, false);
+
+                if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                    outputDone = true;
+                }
+            } else if (out == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+                outputs = codec.getOutputBuffers();
+            } else if (out == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                // The decoder knows the real rate and channels best
+                MediaFormat actual = codec.getOutputFormat();
+                sampleRate = actual.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+                channels = actual.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+            }
+        }
+
+        return new AlarmSound.Pcm(samples, numSamples, sampleRate, channels);
+    }
+}
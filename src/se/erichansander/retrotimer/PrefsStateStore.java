@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2010-2014  Eric Hansander
+ *
+ *  This file is part of Retro Timer.
+ *
+ *  Retro Timer is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Retro Timer is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Retro Timer.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.erichansander.retrotimer;
+
+import java.util.Map;
+
+import android.content.Context;
+
+/**
+ * StateStore that keeps the alarm state in the prefs, through the PrefsWriter
+ *
+ * Only the fields that changed are written. PREF_ALARM_SET is kept up to date
+ * for older versions of the app.
+ */
+class PrefsStateStore implements StateStore {
+    private final PrefsWriter mPrefs;
+
+    public PrefsStateStore(Context context) {
+        mPrefs = PrefsWriter.get(context);
+    }
+
+    public Snapshot load() {
+        // One consistent read, rather than a lookup per pref
+        Map<String, Object> prefs = mPrefs.getAll();
+
+        Object alarmSet = prefs.get(RetroTimer.PREF_ALARM_SET);
+        Object phase = prefs.get(RetroTimer.PREF_ALARM_PHASE);
+        if (!(phase instanceof Integer)) {
+            phase = Boolean.TRUE.equals(alarmSet) ? TimerState.PHASE_ARMED
+                    : TimerState.PHASE_IDLE;
+        }
+        TimerState state = new TimerState((Integer) phase, getLong(prefs,
+                RetroTimer.PREF_ALARM_VERSION, 0), getLong(prefs,
+                RetroTimer.PREF_ALARM_TIME, 0), getLong(prefs,
+                RetroTimer.PREF_ALARM_TIMEOUT_MILLIS,
+                TimerState.DEFAULT_TIMEOUT_MILLIS));
+        return new Snapshot(state, getString(prefs, RetroTimer.PREF_TIMERS),
+                getString(prefs, RetroTimer.PREF_TIME_BASE));
+    }
+
+    private static long getLong(Map<String, Object> prefs, String key,
+            long defValue) {
+        Object value = prefs.get(key);
+        return value instanceof Long ? (Long) value : defValue;
+    }
+
+    private static String getString(Map<String, Object> prefs, String key) {
+        Object value = prefs.get(key);
+        return value instanceof String ? (String) value : "";
+    }
+
+    public void save(TimerState old, TimerState state) {
+        if (old == null || state.isAlarmSet() != old.isAlarmSet()) {
+            mPrefs.putBoolean(RetroTimer.PREF_ALARM_SET, state.isAlarmSet());
+        }
+        if (old == null || state.getPhase() != old.getPhase()) {
+            mPrefs.putInt(RetroTimer.PREF_ALARM_PHASE, state.getPhase());
+        }
+        if (old == null || state.getAlarmTime() != old.getAlarmTime()) {
+            mPrefs.putLong(RetroTimer.PREF_ALARM_TIME, state.getAlarmTime());
+        }
+        if (old == null || state.getTimeoutMillis() != old.getTimeoutMillis()) {
+            mPrefs.putLong(RetroTimer.PREF_ALARM_TIMEOUT_MILLIS,
+                    state.getTimeoutMillis());
+        }
+        mPrefs.putLong(RetroTimer.PREF_ALARM_VERSION, state.getVersion());
+    }
+
+    public void saveTimers(String timers) {
+        mPrefs.putString(RetroTimer.PREF_TIMERS, timers);
+    }
+
+    public void saveTimeBase(String timeBase) {
+        mPrefs.putString(RetroTimer.PREF_TIME_BASE, timeBase);
+    }
+
+    public void runWhenDurable(Runnable task) {
+        mPrefs.runWhenDurable(task);
+    }
+
+    public void runInOrder(Runnable task) {
+        mPrefs.runInOrder(task);
+    }
+}
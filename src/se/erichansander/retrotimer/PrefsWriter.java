@@ -0,0 +1,242 @@
+/*
+ * Copyright (C) 2010-2014  Eric Hansander
+ *
+ *  This file is part of Retro Timer.
+ *
+ *  Retro Timer is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Retro Timer is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Retro Timer.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.erichansander.retrotimer;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+import android.os.Process;
+import android.preference.PreferenceManager;
+
+/**
+ * Single background writer for the shared prefs
+ *
+ * Writes are visible to the getters right away, but are committed to disk
+ * from a background thread, coalesced into at most one commit per
+ * BATCH_WINDOW_MILLIS. Work that must not happen before the writes are on disk
+ * (like arming the AlarmManager) is queued with runWhenDurable().
+ *
+ * All tasks run on the writer thread in the order they were queued.
+ */
+class PrefsWriter {
+
+    /** Max time a write waits for other writes to batch up with */
+    private static final long BATCH_WINDOW_MILLIS = 250;
+
+    private static final int MSG_FLUSH = 1;
+
+    private static PrefsWriter sInstance = null;
+
+    private final SharedPreferences mPrefs;
+    private final Handler mHandler;
+
+    /* Writes that have not been committed yet. Guarded by this. */
+    private final HashMap<String, Object> mPending =
+            new HashMap<String, Object>();
+
+    public static synchronized PrefsWriter get(Context context) {
+        if (sInstance == null) {
+            sInstance = new PrefsWriter(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private PrefsWriter(Context context) {
+        mPrefs = PreferenceManager.getDefaultSharedPreferences(context);
+
+        HandlerThread thread = new HandlerThread("PrefsWriter",
+                Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        mHandler = new Handler(thread.getLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                if (msg.what == MSG_FLUSH) {
+                    flush();
+                }
+            }
+        };
+    }
+
+    public void putLong(String key, long value) {
+        put(key, Long.valueOf(value));
+    }
+
+    public void putInt(String key, int value) {
+        put(key, Integer.valueOf(value));
+    }
+
+    public void putBoolean(String key, boolean value) {
+        put(key, Boolean.valueOf(value));
+    }
+
+    public void putString(String key, String value) {
+        put(key, value);
+    }
+
+    public long getLong(String key, long defValue) {
+        synchronized (this) {
+            Object value = mPending.get(key);
+            if (value != null) {
+                return (Long) value;
+            }
+        }
+        return mPrefs.getLong(key, defValue);
+    }
+
+    public int getInt(String key, int defValue) {
+        synchronized (this) {
+            Object value = mPending.get(key);
+            if (value != null) {
+                return (Integer) value;
+            }
+        }
+        return mPrefs.getInt(key, defValue);
+    }
+
+    public boolean getBoolean(String key, boolean defValue) {
+        synchronized (this) {
+            Object value = mPending.get(key);
+            if (value != null) {
+                return (Boolean) value;
+            }
+        }
+        return mPrefs.getBoolean(key, defValue);
+    }
+
+    public String getString(String key, String defValue) {
+        synchronized (this) {
+            Object value = mPending.get(key);
+            if (value != null) {
+                return (String) value;
+            }
+        }
+        return mPrefs.getString(key, defValue);
+    }
+
+    /**
+     * Returns all the prefs, with the writes not yet committed, as one
+     * consistent copy
+     */
+    public synchronized Map<String, Object> getAll() {
+        HashMap<String, Object> all = new HashMap<String, Object>(
+                mPrefs.getAll());
+        all.putAll(mPending);
+        return all;
+    }
+
+    /**
+     * Runs task on the writer thread, after all earlier queued tasks, and not
+     * until all writes made before the call are committed to disk.
+     */
+    public void runWhenDurable(final Runnable task) {
+        mHandler.post(new Runnable() {
+            public void run() {
+                flush();
+                task.run();
+            }
+        });
+    }
+
+    /**
+     * Runs task on the writer thread, after all earlier queued tasks, without
+     * waiting for pending writes.
+     */
+    public void runInOrder(Runnable task) {
+        mHandler.post(task);
+    }
+
+    /**
+     * Blocks until all writes and tasks queued before the call are done. For
+     * callers that may be killed as soon as they return, like broadcast
+     * receivers.
+     */
+    public void sync() {
+        if (Looper.myLooper() == mHandler.getLooper()) {
+            flush();
+            return;
+        }
+
+        final CountDownLatch done = new CountDownLatch(1);
+        runWhenDurable(new Runnable() {
+            public void run() {
+                done.countDown();
+            }
+        });
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private synchronized void put(String key, Object value) {
+        mPending.put(key, value);
+        if (!mHandler.hasMessages(MSG_FLUSH)) {
+            mHandler.sendEmptyMessageDelayed(MSG_FLUSH, BATCH_WINDOW_MILLIS);
+        }
+    }
+
+    /** Commits all pending writes. Only called on the writer thread. */
+    private void flush() {
+        HashMap<String, Object> batch;
+        synchronized (this) {
+            mHandler.removeMessages(MSG_FLUSH);
+            if (mPending.isEmpty()) {
+                return;
+            }
+            batch = new HashMap<String, Object>(mPending);
+        }
+
+        SharedPreferences.Editor ed = mPrefs.edit();
+        for (Map.Entry<String, Object> e : batch.entrySet()) {
+            Object value = e.getValue();
+            if (value instanceof Long) {
+                ed.putLong(e.getKey(), (Long) value);
+            } else if (value instanceof Integer) {
+                ed.putInt(e.getKey(), (Integer) value);
+            } else if (value instanceof Boolean) {
+                ed.putBoolean(e.getKey(), (Boolean) value);
+            } else if (value instanceof String) {
+                ed.putString(e.getKey(), (String) value);
+            }
+        }
+        ed.commit();
+        TinyTracelog.sync();
+
+        /*
+         * Only now that the prefs hold the new values can they be dropped from
+         * the pending writes, unless they were overwritten in the meantime
+         */
+        synchronized (this) {
+            for (Map.Entry<String, Object> e : batch.entrySet()) {
+                if (mPending.get(e.getKey()) == e.getValue()) {
+                    mPending.remove(e.getKey());
+                }
+            }
+        }
+    }
+}
@@ -19,18 +19,9 @@
 
 package se.erichansander.retrotimer;
 
-import android.app.AlarmManager;
 import android.app.Application;
-import android.app.Notification;
-import android.app.NotificationManager;
-import android.app.PendingIntent;
 import android.content.Context;
 import android.content.Intent;
-import android.content.SharedPreferences;
-import android.os.Build;
-import android.preference.PreferenceManager;
-import android.support.v4.app.NotificationCompat;
-import android.text.format.DateFormat;
 
 /**
  * Main application class. Handles state shared between activities, and holds
@@ -42,6 +33,12 @@ public class RetroTimer extends Application {
      * notification, that will dismiss the alarm when clicked.
      */
     public static final String ALARM_TRIGGER_ACTION = "se.erichansander.retrotimer.ALARM_TRIGGER";
+    /**
+     * When broadcasted a few seconds before the alarm, will have the
+     * TimerKlaxon get ready to sound the alarm on time. See
+     * TimerKlaxon.PREARM_MILLIS.
+     */
+    public static final String ALARM_PREARM_ACTION = "se.erichansander.retrotimer.ALARM_PREARM";
     /**
      * When sent to the TimerKlaxon service, will sound alarm and/or vibrate
      * device
@@ -59,17 +56,36 @@ public class RetroTimer extends Application {
 
     /** For passing the alarm time through an intent */
     public static final String ALARM_TIME_EXTRA = "intent.extra.alarmtime";
+    /** For passing the TimerState version of the alarm through an intent */
+    public static final String ALARM_VERSION_EXTRA = "intent.extra.alarmversion";
+    /** For passing the id of the timer that went off through an intent */
+    public static final String ALARM_TIMER_ID_EXTRA = "intent.extra.timerid";
+    /** For passing the ring timeout of the alarm through an intent */
+    public static final String ALARM_TIMEOUT_EXTRA = "intent.extra.alarmtimeout";
 
     /** Is true when an alarm is set */
     public static final String PREF_ALARM_SET = "prefs.alarm_set";
     /** Max num of millis to play alarm before silencing it automatically */
     public static final String PREF_ALARM_TIMEOUT_MILLIS = "prefs.alarm_timeout_millis";
-    /** Absolute time when alarm should go off, in millis since epoch */
+    /**
+     * Absolute time when alarm should go off, in millis since epoch on
+     * TimerEngine's time base
+     */
     public static final String PREF_ALARM_TIME = "prefs.alarm_time";
+    /** Phase of the alarm, one of the TimerState.PHASE_* constants */
+    public static final String PREF_ALARM_PHASE = "prefs.alarm_phase";
+    /** Version of the alarm state, see TimerState */
+    public static final String PREF_ALARM_VERSION = "prefs.alarm_version";
+    /** The pending timers besides the dial one, encoded by TimerEngine */
+    public static final String PREF_TIMERS = "prefs.timers";
+    /** TimerEngine's time base for this boot, encoded by TimerEngine */
+    public static final String PREF_TIME_BASE = "prefs.time_base";
     /** Is true if alert should play audio */
     public static final String PREF_RING_ON_ALARM = "prefs.ring_on_alarm";
     /** Is true if alert should vibrate device */
     public static final String PREF_VIBRATE_ON_ALARM = "prefs.vibrate_on_alarm";
+    /** Is true if the dial should turn smoothly, instead of once a minute */
+    public static final String PREF_SMOOTH_DIAL = "prefs.smooth_dial";
     /**
      * Is true if the licensing dialog has been shown (when the app was started
      * for the first time).
@@ -87,6 +103,39 @@ public class RetroTimer extends Application {
      */
     public static final int NOTIF_SILENCED_ID = 3;
 
+    /* The alarm state machine, built on first use */
+    private static volatile TimerEngine sEngine = null;
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+
+        TinyTracelog.init(this);
+        // Select how to register alarms once, rather than on every alarm
+        AlarmStrategy.get();
+    }
+
+    /**
+     * Returns the alarm state machine, backed by the AlarmManager, the
+     * notifications and the prefs
+     */
+    static TimerEngine getEngine(Context context) {
+        TimerEngine engine = sEngine;
+        if (engine == null) {
+            synchronized (RetroTimer.class) {
+                engine = sEngine;
+                if (engine == null) {
+                    engine = new TimerEngine(new AndroidClock(context),
+                            new AndroidAlarmScheduler(context),
+                            AndroidNotifier.get(context),
+                            new PrefsStateStore(context));
+                    sEngine = engine;
+                }
+            }
+        }
+        return engine;
+    }
+
     /**
      * Initializes the app state, and initializes the AlarmManager if any alarms
      * are pending from before the device was rebooted.
@@ -95,167 +144,155 @@ public class RetroTimer extends Application {
      * has been killed).
      */
     public static void initAlarm(Context context) {
-        SharedPreferences prefs = PreferenceManager
-                .getDefaultSharedPreferences(context);
-
-        if (prefs.getBoolean(PREF_ALARM_SET, false)
-                || prefs.getLong(PREF_ALARM_TIME, 0) > 0) {
-            if (getMillisLeftToAlarm(context) > 1000) {
-                /*
-                 * If there is time left until the alarm should trigger, we
-                 * register it again with the AlarmManager
-                 */
-                setAlarmAt(context, prefs.getLong(PREF_ALARM_TIME, 0));
-            } else {
-                /* Otherwise, we do some clean-up */
-                clearAlarm(context);
-            }
-        }
+        getEngine(context).init();
+    }
+
+    /**
+     * Takes the time base from the wall clock again, and then does
+     * initAlarm(). Should be called at device boot.
+     */
+    public static void onBoot(Context context) {
+        getEngine(context).onBoot();
+    }
+
+    /**
+     * Registers the alarm with the AlarmManager again. For when the wall
+     * clock has been changed, which moves alarms registered on it.
+     */
+    public static void refreshAlarm(Context context) {
+        getEngine(context).refreshSchedule();
     }
 
     /**
      * Convenience method for setting an alarm to trigger in millisLeft millis.
      */
     public static void setAlarmDelayed(Context context, long millisLeft) {
-        SharedPreferences prefs = PreferenceManager
-                .getDefaultSharedPreferences(context);
-        SharedPreferences.Editor ed = prefs.edit();
-        /*
-         * Set the alarm timeout to 5 + (mins to alarm)/2 seconds, i.e. timeout
-         * will be in the range 5..34.5 seconds if the time max countdown is 59
-         * minutes
-         */
-        ed.putLong(RetroTimer.PREF_ALARM_TIMEOUT_MILLIS,
-                15000 + millisLeft / 60);
-        ed.commit();
-
-        long now = System.currentTimeMillis();
-        setAlarmAt(context, now + millisLeft);
+        getEngine(context).setAlarmDelayed(millisLeft);
 
         TinyTracelog.init(context);
         TinyTracelog.clear();
-        TinyTracelog.trace("1 " + now + "," + (millisLeft / 60000));
+        TinyTracelog.trace(TraceEvent.ALARM_SET, millisLeft / 60000);
     }
 
     /**
-     * Sets an alarm at absolute time alarmTime (in millis from epoch)
+     * Sets an alarm at absolute time alarmTime (in millis from epoch, on the
+     * time base), that will ring for at most timeoutMillis. Replaces any
+     * earlier alarm.
+     * 
+     * The alarm is registered with the AlarmManager from the PrefsWriter
+     * thread, once the alarm time is safely on disk.
      */
-    public static void setAlarmAt(Context context, long alarmTime) {
-        SharedPreferences prefs = PreferenceManager
-                .getDefaultSharedPreferences(context);
-        SharedPreferences.Editor ed = prefs.edit();
-        ed.putLong(RetroTimer.PREF_ALARM_TIME, alarmTime);
-        ed.putBoolean(RetroTimer.PREF_ALARM_SET, true);
-        ed.commit();
-
-        Intent intent = new Intent(RetroTimer.ALARM_TRIGGER_ACTION);
-        intent.putExtra(RetroTimer.ALARM_TIME_EXTRA, alarmTime);
-        PendingIntent sender = PendingIntent.getBroadcast(context, 0, intent,
-                PendingIntent.FLAG_CANCEL_CURRENT);
-
-        /*
-         * Activate alarm in AlarmManager. Since the API for activating the
-         * alarm changed in KitKat, we need to treat the two versions
-         * differently, and since "Dalvik in Android 1.x was very conservative
-         * and would crash if you try to load a class that contains a reference
-         * that it cannot resolve" we have to put it in a separate class...
-         * 
-         * See
-         * http://stackoverflow.com/questions/13444255/could-not-find-method-
-         * from-the-newer-api-with-using-targetapi-annotation
-         */
-        AlarmManager am = (AlarmManager) context
-                .getSystemService(Context.ALARM_SERVICE);
-        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT) {
-            am.set(AlarmManager.RTC_WAKEUP, alarmTime, sender);
-        } else {
-            AlarmManagerKitKat.set(am, alarmTime, sender);
-        }
+    public static void setAlarmAt(Context context, long alarmTime,
+            long timeoutMillis) {
+        getEngine(context).setAlarmAt(alarmTime, timeoutMillis);
+    }
 
-        // Trigger a notification that, when clicked, will open TimerSet
-        Intent viewAlarm = new Intent(context, TimerSet.class);
-        viewAlarm.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
-        PendingIntent pendingNotify = PendingIntent.getActivity(context, 0,
-                viewAlarm, 0);
-
-        NotificationCompat.Builder mBuilder = new NotificationCompat.Builder(
-                context)
-                .setContentIntent(pendingNotify)
-                .setDefaults(Notification.DEFAULT_LIGHTS)
-                .setOngoing(true)
-                .setSmallIcon(R.drawable.ic_stat_alarm_set)
-                .setContentTitle(context.getString(R.string.notify_set_label))
-                .setContentText(
-                        context.getString(R.string.notify_set_text, DateFormat
-                                .getTimeFormat(context).format(alarmTime)));
-
-        /*
-         * Send the notification using the alarm id to easily identify the
-         * correct notification.
-         */
-        NotificationManager nm = (NotificationManager) context
-                .getSystemService(Context.NOTIFICATION_SERVICE);
-        nm.notify(RetroTimer.NOTIF_SET_ID, mBuilder.build());
+    /**
+     * Adds a countdown of millisLeft millis, with the default timeout, that
+     * runs alongside the dial timer. Returns its timer id.
+     */
+    public static int addTimer(Context context, long millisLeft) {
+        TimerEngine engine = getEngine(context);
+        int timerId = engine.addTimer(engine.currentTime() + millisLeft,
+                TimerEngine.timeoutFor(millisLeft));
+        TinyTracelog.trace(TraceEvent.TIMER_ADDED, timerId, millisLeft / 60000);
+        return timerId;
     }
 
-    /** Cancels the alarm in the AlarmManager and updates app state */
+    /**
+     * Cancels the alarm in the AlarmManager and updates app state
+     * 
+     * The AlarmManager is updated from the PrefsWriter thread, so that it is
+     * done after any registration that is still waiting there.
+     */
     public static void cancelAlarm(Context context) {
-        // Cancel the alarm in AlarmManager
-        AlarmManager am = (AlarmManager) context
-                .getSystemService(Context.ALARM_SERVICE);
-        PendingIntent sender = PendingIntent.getBroadcast(context, 0,
-                new Intent(RetroTimer.ALARM_TRIGGER_ACTION),
-                PendingIntent.FLAG_CANCEL_CURRENT);
-        am.cancel(sender);
-
-        // Cancel the notification
-        NotificationManager nm = (NotificationManager) context
-                .getSystemService(Context.NOTIFICATION_SERVICE);
-        nm.cancel(RetroTimer.NOTIF_SET_ID);
-
-        clearAlarm(context);
+        getEngine(context).cancelAlarm();
     }
 
     /**
-     * Clears the shared information about the alarm.
+     * Clears the shared information about the alarm, whatever phase it is in.
      * 
-     * Can be called either after the alarm has been cancelled, or after it has
-     * triggered.
+     * Used to clean up after alarms that were missed or went wrong.
      */
     public static void clearAlarm(Context context) {
-        SharedPreferences prefs = PreferenceManager
-                .getDefaultSharedPreferences(context);
-        SharedPreferences.Editor ed = prefs.edit();
-
-        // Update the shared state
-        ed.putLong(RetroTimer.PREF_ALARM_TIME, 0);
-        ed.putBoolean(RetroTimer.PREF_ALARM_SET, false);
-        ed.commit();
+        getEngine(context).clearAlarm();
+    }
+
+    /**
+     * Handles the alarm of the given timer and version, set for alarmTime,
+     * going off.
+     * 
+     * Returns the ringing state, or null if the alarm is stale, i.e. it has
+     * been cancelled or replaced since it was armed. See TimerEngine.
+     */
+    public static TimerState triggerAlarm(Context context, int timerId,
+            long version, long alarmTime) {
+        return getEngine(context).triggerAlarm(timerId, version, alarmTime);
+    }
+
+    /**
+     * Returns true if the timer with the given id is still waiting to go off
+     * at the given version
+     */
+    public static boolean isPending(Context context, int timerId,
+            long version) {
+        return getEngine(context).isPending(timerId, version);
+    }
+
+    /**
+     * Moves the ringing alarm of the given timer and version to SILENCED.
+     * Returns false if the alarm is no longer ringing.
+     */
+    public static boolean silenceAlarm(Context context, int timerId,
+            long version) {
+        return getEngine(context).silenceAlarm(timerId, version);
+    }
+
+    /**
+     * Moves the ringing alarm, if any, to DISMISSED. Returns false if no alarm
+     * was ringing.
+     */
+    public static boolean dismissAlarm(Context context) {
+        return getEngine(context).dismissAlarm();
+    }
+
+    /** Returns the current alarm state */
+    public static TimerState getState(Context context) {
+        return getEngine(context).getState();
+    }
+
+    /** Returns true if an alarm is set */
+    public static boolean isAlarmSet(Context context) {
+        return getEngine(context).isAlarmSet();
     }
 
     /** Returns millis left to alarm, or zero if no alarm is set */
     public static long getMillisLeftToAlarm(Context context) {
-        SharedPreferences prefs = PreferenceManager
-                .getDefaultSharedPreferences(context);
-        if (prefs.getBoolean(RetroTimer.PREF_ALARM_SET, false)) {
-            return prefs.getLong(RetroTimer.PREF_ALARM_TIME, 0)
-                    - System.currentTimeMillis();
-        } else {
-            return 0;
-        }
+        return getEngine(context).getMillisLeftToAlarm();
     }
 
     /**
      * Returns the absolute time when alarm will trigger, in millis since epoch
+     * on the time base
      */
     public static long getAlarmTime(Context context) {
-        SharedPreferences prefs = PreferenceManager
-                .getDefaultSharedPreferences(context);
-        if (prefs.getBoolean(RetroTimer.PREF_ALARM_SET, false)) {
-            return prefs.getLong(RetroTimer.PREF_ALARM_TIME, 0);
-        } else {
-            return 0;
-        }
+        return getEngine(context).getAlarmTime();
+    }
+
+    /**
+     * Returns the millis left until time, on the time base, e.g. an alarm time
+     * passed in an intent. Negative once it has passed.
+     */
+    public static long getMillisUntil(Context context, long time) {
+        return time - getEngine(context).currentTime();
+    }
+
+    /**
+     * Returns the SystemClock.elapsedRealtime() at which the time base
+     * reaches time
+     */
+    public static long toElapsedRealtime(Context context, long time) {
+        return getEngine(context).toElapsedRealtime(time);
     }
 
     /**
@@ -266,5 +303,8 @@ public class RetroTimer extends Application {
         context.sendBroadcast(intent);
 
         cancelAlarm(context);
+
+        // We are probably about to crash, so don't leave it in the queue
+        PrefsWriter.get(context).sync();
     }
 }
@@ -0,0 +1,37 @@
+/*
+ * Copyright (C) 2010-2014  Eric Hansander
+ *
+ *  This file is part of Retro Timer.
+ *
+ *  Retro Timer is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Retro Timer is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Retro Timer.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.erichansander.retrotimer;
+
+/**
+ * A path that the dial scale is laid out along
+ *
+ * Lets the scale layout in DialMath be used without the Android graphics
+ * classes, e.g. in the benchmarks. On device, it is backed by a PathMeasure.
+ */
+interface ScalePath {
+    /** Returns the total length of the path */
+    float getLength();
+
+    /**
+     * Writes the position and unit tangent at given distance along the path
+     * into pos and tan, like PathMeasure.getPosTan()
+     */
+    void getPosTan(float distance, float[] pos, float[] tan);
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2010-2014  Eric Hansander
+ *
+ *  This file is part of Retro Timer.
+ *
+ *  Retro Timer is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Retro Timer is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Retro Timer.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.erichansander.retrotimer;
+
+/**
+ * Where TimerEngine keeps its state between processes. On device, the prefs.
+ *
+ * Also runs the engine's background work, so that work can be ordered
+ * against the writes.
+ */
+public interface StateStore {
+    /** Everything the engine keeps in the store, as read by load() */
+    public static final class Snapshot {
+        private final TimerState mState;
+        private final String mTimers;
+        private final String mTimeBase;
+
+        public Snapshot(TimerState state, String timers, String timeBase) {
+            mState = state;
+            mTimers = timers;
+            mTimeBase = timeBase;
+        }
+
+        /** The stored state, or the initial one if none is stored */
+        public TimerState getState() {
+            return mState;
+        }
+
+        /** The timers last saved by saveTimers(), or an empty string */
+        public String getTimers() {
+            return mTimers;
+        }
+
+        /** The time base last saved by saveTimeBase(), or an empty string */
+        public String getTimeBase() {
+            return mTimeBase;
+        }
+    }
+
+    /** Reads everything that has been stored, in one go */
+    Snapshot load();
+
+    /**
+     * Stores state, which replaces old (null if nothing has been stored by
+     * this process). Called with newer versions only, one call at a time.
+     * May write in the background, but later loads must see the new state.
+     */
+    void save(TimerState old, TimerState state);
+
+    /** Stores the encoded timers, see TimerEngine. Same rules as save(). */
+    void saveTimers(String timers);
+
+    /** Stores the encoded time base, see TimerEngine. Same rules as save(). */
+    void saveTimeBase(String timeBase);
+
+    /**
+     * Runs task after all earlier queued tasks, and not until all states
+     * saved before the call are durable
+     */
+    void runWhenDurable(Runnable task);
+
+    /** Runs task after all earlier queued tasks, without waiting for writes */
+    void runInOrder(Runnable task);
+}
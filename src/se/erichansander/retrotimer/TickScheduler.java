@@ -0,0 +1,208 @@
+/*
+ * Copyright (C) 2010-2014  Eric Hansander
+ *
+ *  This file is part of Retro Timer.
+ *
+ *  Retro Timer is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Retro Timer is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Retro Timer.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.erichansander.retrotimer;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.Handler;
+import android.os.PowerManager;
+import android.os.SystemClock;
+import android.support.v4.view.ViewCompat;
+import android.view.View;
+
+/**
+ * Calls a Listener with the time left to a deadline, at a fixed resolution
+ * 
+ * Every tick is lined up against the deadline itself, on the
+ * SystemClock.elapsedRealtime() clock, rather than the previous tick, so a
+ * late tick does not make the next one late, and changes to the wall clock do
+ * not matter. With RESOLUTION_MINUTE, ticks come TICK_LEAD_MILLIS before each
+ * whole minute left, so the display has turned when the minute starts.
+ * 
+ * Ticks only while the activity is started (see onStart() and onStop()) and
+ * the screen is on. Coming back gives one tick at once, to catch up, after
+ * which the ticks go on as before.
+ * 
+ * The last tick is at the deadline, with zero millis left.
+ */
+class TickScheduler {
+    /** Tick once a minute */
+    public static final long RESOLUTION_MINUTE = 60 * 1000;
+    /** Tick once a second */
+    public static final long RESOLUTION_SECOND = 1000;
+    /** Tick every frame */
+    public static final long RESOLUTION_FRAME = 0;
+
+    /* How long before each whole minute or second to tick */
+    private static final long TICK_LEAD_MILLIS = 500;
+
+    public interface Listener {
+        /** Called on the UI thread, with the millis left to the deadline */
+        void onTick(long millisLeft);
+    }
+
+    private final Context mContext;
+    private final View mFrameView;
+    private final Listener mListener;
+    private final Handler mHandler = new Handler();
+
+    private boolean mRunning = false;
+    private boolean mStarted = false;
+    private boolean mScreenOn = true;
+    private boolean mTickPosted = false;
+    private long mDeadline = 0;
+    private long mResolution = RESOLUTION_MINUTE;
+
+    private final Runnable mTick = new Runnable() {
+        public void run() {
+            mTickPosted = false;
+            tick();
+        }
+    };
+
+    private final BroadcastReceiver mScreenReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            setScreenOn(Intent.ACTION_SCREEN_ON.equals(intent.getAction()));
+        }
+    };
+
+    /**
+     * frameView is used for timing the ticks with RESOLUTION_FRAME, and should
+     * be the view being updated
+     */
+    public TickScheduler(Context context, View frameView, Listener listener) {
+        mContext = context;
+        mFrameView = frameView;
+        mListener = listener;
+    }
+
+    /**
+     * Returns how long after now to tick next, with millisLeft to the
+     * deadline, for RESOLUTION_MINUTE or RESOLUTION_SECOND. Never more than
+     * millisLeft, so the last tick is at the deadline.
+     */
+    static long delayToNextTick(long millisLeft, long resolution) {
+        long lead = Math.min(TICK_LEAD_MILLIS, resolution / 2);
+        long sinceTick = (millisLeft - lead) % resolution;
+        if (sinceTick <= 0) {
+            sinceTick += resolution;
+        }
+        return Math.min(sinceTick, millisLeft);
+    }
+
+    /**
+     * Starts ticking towards deadline, in SystemClock.elapsedRealtime()
+     * millis, with one of the RESOLUTION_* values. Ticks at once, if ticking
+     * now.
+     */
+    public void start(long deadline, long resolution) {
+        mDeadline = deadline;
+        mResolution = resolution;
+        mRunning = true;
+        cancelTick();
+        if (isActive()) {
+            tick();
+        }
+    }
+
+    /** Stops ticking, until start() is called again */
+    public void stop() {
+        mRunning = false;
+        cancelTick();
+    }
+
+    /** Call from Activity.onStart() */
+    public void onStart() {
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_SCREEN_ON);
+        filter.addAction(Intent.ACTION_SCREEN_OFF);
+        mContext.registerReceiver(mScreenReceiver, filter);
+
+        PowerManager pm = (PowerManager) mContext
+                .getSystemService(Context.POWER_SERVICE);
+        mScreenOn = pm.isScreenOn();
+        setStarted(true);
+    }
+
+    /** Call from Activity.onStop() */
+    public void onStop() {
+        mContext.unregisterReceiver(mScreenReceiver);
+        setStarted(false);
+    }
+
+    private void setStarted(boolean started) {
+        boolean wasActive = isActive();
+        mStarted = started;
+        onActiveChanged(wasActive);
+    }
+
+    private void setScreenOn(boolean screenOn) {
+        boolean wasActive = isActive();
+        mScreenOn = screenOn;
+        onActiveChanged(wasActive);
+    }
+
+    private boolean isActive() {
+        return mRunning && mStarted && mScreenOn;
+    }
+
+    private void onActiveChanged(boolean wasActive) {
+        boolean active = isActive();
+        if (active && !wasActive) {
+            // Catch up on what was missed
+            tick();
+        } else if (!active) {
+            cancelTick();
+        }
+    }
+
+    private void tick() {
+        long millisLeft = Math.max(0,
+                mDeadline - SystemClock.elapsedRealtime());
+        if (millisLeft == 0) {
+            mRunning = false;
+        } else {
+            scheduleTick(millisLeft);
+        }
+        mListener.onTick(millisLeft);
+    }
+
+    private void scheduleTick(long millisLeft) {
+        if (mTickPosted) {
+            return;
+        }
+        mTickPosted = true;
+        if (mResolution == RESOLUTION_FRAME) {
+            ViewCompat.postOnAnimation(mFrameView, mTick);
+        } else {
+            mHandler.postDelayed(mTick,
+                    delayToNextTick(millisLeft, mResolution));
+        }
+    }
+
+    private void cancelTick() {
+        mHandler.removeCallbacks(mTick);
+        mFrameView.removeCallbacks(mTick);
+        mTickPosted = false;
+    }
+}
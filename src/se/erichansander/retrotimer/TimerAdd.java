@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2010-2014  Eric Hansander
+ *
+ *  This file is part of Retro Timer.
+ *
+ *  Retro Timer is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Retro Timer is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Retro Timer.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.erichansander.retrotimer;
+
+import android.app.Activity;
+import android.content.Intent;
+import android.os.Bundle;
+import android.widget.Toast;
+
+/**
+ * Starts a countdown alongside the dial timer, on request from other apps
+ * 
+ * Handles the standard SET_TIMER intent (see android.provider.AlarmClock),
+ * so that voice commands, kitchen apps and the like can run as many
+ * countdowns as they need. The countdowns ring like the dial timer, but are
+ * not shown on the dial. Without a length, the TimerSet activity is opened
+ * instead.
+ */
+public class TimerAdd extends Activity {
+    // From android.provider.AlarmClock, which is API level 19
+    private static final String EXTRA_LENGTH = "android.intent.extra.alarm.LENGTH";
+
+    /* The longest countdown that may be asked for, in seconds */
+    private static final int MAX_LENGTH_SECONDS = 24 * 60 * 60;
+
+    @Override
+    public void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+
+        int seconds = getIntent().getIntExtra(EXTRA_LENGTH, 0);
+        if (seconds > 0 && seconds <= MAX_LENGTH_SECONDS) {
+            RetroTimer.addTimer(this, seconds * 1000L);
+            AlarmSound.warmUp(this);
+
+            int minutes = (seconds + 59) / 60;
+            Toast.makeText(this, getString(R.string.timer_added, minutes),
+                    Toast.LENGTH_LONG).show();
+        } else {
+            Intent setTimer = new Intent(this, TimerSet.class);
+            setTimer.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+            startActivity(setTimer);
+        }
+        finish();
+    }
+}
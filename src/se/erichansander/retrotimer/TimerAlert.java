@@ -39,6 +39,7 @@ import android.view.WindowManager;
 public class TimerAlert extends Activity implements TimerAlertListener {
 
     private TimerAlertView mTimer;
+    private long mAlarmTime;
 
     /*
      * Receiver to handle ALARM_SILENCE_ACTION and ALARM_DISMISS_ACTION intents,
@@ -55,6 +56,9 @@ public class TimerAlert extends Activity implements TimerAlertListener {
     public void onCreate(Bundle icicle) {
         super.onCreate(icicle);
 
+        mAlarmTime = getIntent().getLongExtra(RetroTimer.ALARM_TIME_EXTRA, 0);
+        AlertLatency.mark(this, mAlarmTime, AlertLatency.STAGE_ALERT_CREATE);
+
         setToShowOverLockScreen(getWindow());
 
         setContentView(R.layout.timer_alert);
@@ -126,6 +130,10 @@ public class TimerAlert extends Activity implements TimerAlertListener {
         dismissAlarm();
     }
 
+    public void onAlertDrawn() {
+        AlertLatency.mark(this, mAlarmTime, AlertLatency.STAGE_ALERT_DRAWN);
+    }
+
     private void dismissAlarm() {
         // Broadcast ALARM_DISMISS_ACTION to kill the TimerKlaxon
         Intent intent = new Intent(RetroTimer.ALARM_DISMISS_ACTION);
@@ -20,6 +20,7 @@
 package se.erichansander.retrotimer;
 
 import android.content.Context;
+import android.graphics.Canvas;
 import android.util.AttributeSet;
 import android.view.View;
 import android.view.View.OnClickListener;
@@ -28,9 +29,13 @@ import android.view.View.OnClickListener;
 public class TimerAlertView extends TimerView implements OnClickListener {
 
     private TimerAlertListener mListener = null;
+    private boolean mDrawn = false;
 
     public interface TimerAlertListener {
         abstract void onAlertDismissed();
+
+        /** Called when the view has been drawn for the first time */
+        abstract void onAlertDrawn();
     }
 
     public TimerAlertView(Context context, AttributeSet attrs) {
@@ -46,4 +51,16 @@ public class TimerAlertView extends TimerView implements OnClickListener {
     public void onClick(View v) {
         mListener.onAlertDismissed();
     }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        super.onDraw(canvas);
+
+        if (!mDrawn) {
+            mDrawn = true;
+            if (mListener != null) {
+                mListener.onAlertDrawn();
+            }
+        }
+    }
 }
@@ -0,0 +1,693 @@
+/*
+ * Copyright (C) 2010-2014  Eric Hansander
+ *
+ *  This file is part of Retro Timer.
+ *
+ *  Retro Timer is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Retro Timer is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Retro Timer.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.erichansander.retrotimer;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The alarm state machine, without any Android dependencies
+ *
+ * Holds the current TimerState of the dial timer, moves it between the phases
+ * (see TimerState), and keeps the store, the scheduler and the notifier in
+ * line with it. The state is replaced as a whole with compare-and-set, so all
+ * methods can be called from any thread.
+ *
+ * Any number of other timers can run alongside the dial timer, see
+ * addTimer(). All pending timers, the dial one included, are kept in a
+ * TimerRegistry, and only the one that goes off first is registered with the
+ * scheduler. When it goes off, the next one is registered.
+ *
+ * All times are kept on the engine's time base: millis since epoch, but
+ * counted on the Clock's elapsedRealtime() from an anchor taken from the wall
+ * clock once per boot. So the countdown does not jump when the wall clock is
+ * changed or corrected, and the wall clock is only looked at again after a
+ * reboot, see onBoot().
+ *
+ * On device, RetroTimer holds the one instance, built from Android adapters.
+ * Off-device, it can be run on virtual time.
+ */
+public class TimerEngine {
+    /*
+     * Alarms less than this far in the future when the state is restored are
+     * treated as missed
+     */
+    private static final long MIN_RESTORE_MILLIS = 1000;
+
+    /*
+     * How far the wall clock may be from a saved time base, for it to be
+     * taken as from this boot when the boot count is unknown. Far less than
+     * a reboot takes.
+     */
+    private static final long ANCHOR_TOLERANCE_MILLIS = 10 * 1000;
+
+    /** Timer id of the dial timer, the one with a TimerState */
+    public static final int DIAL_TIMER_ID = 0;
+    /* Timer id of the first timer added with addTimer() */
+    private static final int FIRST_TIMER_ID = 1;
+    /**
+     * Version of alarms registered by versions of the app that did not send
+     * one, and are still pending after an update
+     */
+    public static final long VERSION_UNKNOWN = -1;
+
+    private final Clock mClock;
+    private final AlarmScheduler mScheduler;
+    private final Notifier mNotifier;
+    private final StateStore mStore;
+
+    /* The current state. Loaded from the store on first use. */
+    private final AtomicReference<TimerState> mState =
+            new AtomicReference<TimerState>();
+
+    /* The last state saved to the store. Guarded by mPersistLock. */
+    private final Object mPersistLock = new Object();
+    private TimerState mPersisted = null;
+
+    /*
+     * The time base: the wall clock time when elapsedRealtime() was zero, this
+     * boot. Loaded together with the state, and only changed in a new boot.
+     * mReanchored is true once it has been taken from the wall clock by this
+     * process. Written under mPersistLock.
+     */
+    private volatile long mAnchor = 0;
+    private boolean mReanchored = false;
+
+    /*
+     * The pending timers, and the id to give the next added one. Loaded
+     * together with the state. Guarded by mRegistry.
+     */
+    private final TimerRegistry mRegistry = new TimerRegistry();
+    private int mNextTimerId = FIRST_TIMER_ID;
+
+    /*
+     * The timer last registered with the scheduler, so that it is only told
+     * when the first timer changes. Only used from the store queue.
+     */
+    private static final int SCHEDULED_NONE = -1;
+    private static final int SCHEDULED_UNKNOWN = -2;
+    private int mScheduledId = SCHEDULED_UNKNOWN;
+    private long mScheduledTime = 0;
+    private long mScheduledVersion = 0;
+
+    public TimerEngine(Clock clock, AlarmScheduler scheduler,
+            Notifier notifier, StateStore store) {
+        mClock = clock;
+        mScheduler = scheduler;
+        mNotifier = notifier;
+        mStore = store;
+    }
+
+    /**
+     * Returns how long an alarm set millisLeft millis ahead may ring before it
+     * is silenced automatically: 15 s plus a second per minute of countdown.
+     */
+    public static long timeoutFor(long millisLeft) {
+        return 15000 + millisLeft / 60;
+    }
+
+    /**
+     * Registers the stored alarm again, if there is time left to it, or clears
+     * it otherwise. For when the scheduler may have forgotten the alarm, like
+     * after a reboot or when the process has been killed.
+     */
+    public void init() {
+        final TimerState state = getState();
+
+        if (state.isAlarmSet()) {
+            long millisLeft = state.getAlarmTime() - currentTime();
+            if (millisLeft > MIN_RESTORE_MILLIS) {
+                /*
+                 * The state itself is unchanged, so the alarm keeps its
+                 * version
+                 */
+                mStore.runWhenDurable(new Runnable() {
+                    public void run() {
+                        if (getState().getVersion() == state.getVersion()) {
+                            mNotifier.showAlarmSet(state);
+                        }
+                    }
+                });
+            } else {
+                clearAlarm();
+            }
+        }
+
+        // Drop the other timers that were missed too, and tell the user
+        long missed = 0;
+        synchronized (mRegistry) {
+            long now = currentTime();
+            TimerRegistry.Entry first;
+            while ((first = mRegistry.peek()) != null
+                    && first.getAlarmTime() - now <= MIN_RESTORE_MILLIS
+                    && first.getId() != DIAL_TIMER_ID) {
+                mRegistry.remove(first.getId());
+                missed = first.getAlarmTime();
+            }
+            if (missed != 0) {
+                persistTimers();
+            }
+        }
+        if (missed != 0) {
+            final long lastMissed = missed;
+            mStore.runWhenDurable(new Runnable() {
+                public void run() {
+                    mNotifier.showMissed(lastMissed);
+                }
+            });
+        }
+
+        // The scheduler may have forgotten the first timer, so register it
+        // again even if it looks unchanged
+        refreshSchedule();
+    }
+
+    /**
+     * Takes the time base from the wall clock again, and then does init().
+     * For when the device has booted, which resets elapsedRealtime(), unless
+     * this process has already noticed.
+     * 
+     * Alarms keep their time since epoch over the reboot, so this is the one
+     * place where the wall clock decides how much time is left to them.
+     */
+    public void onBoot() {
+        getState();
+        synchronized (mPersistLock) {
+            if (!mReanchored) {
+                reanchor(mClock.elapsedRealtime());
+            }
+        }
+        init();
+    }
+
+    /**
+     * Registers the first timer with the scheduler again, even if it looks
+     * unchanged. For when the scheduler may have forgotten it, or registered
+     * it on a clock that has since been changed.
+     */
+    public void refreshSchedule() {
+        getState();
+        mStore.runWhenDurable(new Runnable() {
+            public void run() {
+                mScheduledId = SCHEDULED_UNKNOWN;
+                reschedule();
+            }
+        });
+    }
+
+    /**
+     * Sets an alarm millisLeft millis from now, with the default timeout.
+     * Returns the new state.
+     */
+    public TimerState setAlarmDelayed(long millisLeft) {
+        return setAlarmAt(currentTime() + millisLeft,
+                timeoutFor(millisLeft));
+    }
+
+    /**
+     * Sets an alarm at absolute time alarmTime (in millis from epoch, on the
+     * time base), that will ring for at most timeoutMillis. Replaces any
+     * earlier alarm. Returns the new state.
+     * 
+     * The alarm is scheduled once the new state is durable.
+     */
+    public TimerState setAlarmAt(long alarmTime, long timeoutMillis) {
+        TimerState cur, next;
+        do {
+            cur = getState();
+            next = cur.armed(alarmTime, timeoutMillis);
+        } while (!mState.compareAndSet(cur, next));
+        persist();
+
+        final TimerState armed = next;
+        mStore.runWhenDurable(new Runnable() {
+            public void run() {
+                if (getState().getVersion() == armed.getVersion()) {
+                    mNotifier.showAlarmSet(armed);
+                }
+                reschedule();
+            }
+        });
+        return armed;
+    }
+
+    /**
+     * Cancels the alarm, if set. The scheduler is updated after any
+     * registration still waiting in the store queue.
+     */
+    public void cancelAlarm() {
+        TimerState cur;
+        do {
+            cur = getState();
+        } while (cur.isAlarmSet()
+                && !mState.compareAndSet(cur,
+                        cur.withPhase(TimerState.PHASE_IDLE)));
+        persist();
+
+        mStore.runInOrder(new Runnable() {
+            public void run() {
+                reschedule();
+                mNotifier.cancelAlarmSet();
+            }
+        });
+    }
+
+    /**
+     * Clears the alarm, whatever phase it is in. Used to clean up after alarms
+     * that were missed or went wrong.
+     */
+    public void clearAlarm() {
+        TimerState cur;
+        do {
+            cur = getState();
+            if (cur.getPhase() == TimerState.PHASE_IDLE) {
+                return;
+            }
+        } while (!mState.compareAndSet(cur,
+                cur.withPhase(TimerState.PHASE_IDLE)));
+        persist();
+    }
+
+    /**
+     * Handles the scheduled alarm of the timer with the given id and version
+     * going off, and registers the next timer with the scheduler.
+     * 
+     * For the dial timer, moves it from ARMED to RINGING and returns the new
+     * state. For other timers, returns a state in RINGING for them, that is
+     * not kept. Returns null if the alarm is stale, i.e. the timer has been
+     * cancelled or replaced since it was registered.
+     */
+    public TimerState triggerAlarm(int timerId, long version) {
+        TimerState ringing = null;
+        if (timerId == DIAL_TIMER_ID) {
+            ringing = transition(version, TimerState.PHASE_ARMED,
+                    TimerState.PHASE_RINGING);
+        } else {
+            synchronized (mRegistry) {
+                TimerRegistry.Entry e = mRegistry.get(timerId);
+                if (e != null && e.getVersion() == version) {
+                    mRegistry.remove(timerId);
+                    persistTimers();
+                    ringing = new TimerState(TimerState.PHASE_RINGING,
+                            version, e.getAlarmTime(), e.getTimeoutMillis());
+                }
+            }
+        }
+
+        // The alarm that went off is used up, so register the next one
+        mStore.runWhenDurable(new Runnable() {
+            public void run() {
+                mScheduledId = SCHEDULED_NONE;
+                reschedule();
+            }
+        });
+        return ringing;
+    }
+
+    /**
+     * Like triggerAlarm(int, long), but also accepts an alarm of the dial
+     * timer with VERSION_UNKNOWN, if it is for the alarm time that is armed.
+     * Such alarms were registered before an update, and must still ring.
+     */
+    public TimerState triggerAlarm(int timerId, long version, long alarmTime) {
+        if (timerId == DIAL_TIMER_ID && version == VERSION_UNKNOWN) {
+            TimerState cur = getState();
+            if (cur.getPhase() == TimerState.PHASE_ARMED
+                    && cur.getAlarmTime() == alarmTime) {
+                version = cur.getVersion();
+            }
+        }
+        return triggerAlarm(timerId, version);
+    }
+
+    /**
+     * Moves the ringing dial timer with the given version to SILENCED, e.g.
+     * when it has rung for its timeout. Returns false if it is no longer
+     * ringing, or timerId is not the dial timer.
+     */
+    public boolean silenceAlarm(int timerId, long version) {
+        if (timerId != DIAL_TIMER_ID) {
+            return false;
+        }
+        return transition(version, TimerState.PHASE_RINGING,
+                TimerState.PHASE_SILENCED) != null;
+    }
+
+    /**
+     * Adds a timer at absolute time alarmTime (in millis from epoch, on the
+     * time base), that will ring for at most timeoutMillis, alongside the dial
+     * timer and any other timers. Returns its id.
+     */
+    public int addTimer(long alarmTime, long timeoutMillis) {
+        getState();
+        int id;
+        synchronized (mRegistry) {
+            id = mNextTimerId++;
+            // The id is never reused, so it doubles as the version
+            mRegistry.put(id, alarmTime, timeoutMillis, id);
+            persistTimers();
+        }
+
+        mStore.runWhenDurable(new Runnable() {
+            public void run() {
+                reschedule();
+            }
+        });
+        return id;
+    }
+
+    /**
+     * Cancels the timer with the given id, as returned by addTimer(). Returns
+     * false if it was not pending.
+     */
+    public boolean cancelTimer(int timerId) {
+        if (timerId == DIAL_TIMER_ID) {
+            return false;
+        }
+        getState();
+        synchronized (mRegistry) {
+            if (mRegistry.remove(timerId) == null) {
+                return false;
+            }
+            persistTimers();
+        }
+
+        mStore.runInOrder(new Runnable() {
+            public void run() {
+                reschedule();
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Returns true if the timer with the given id is still waiting to go off
+     * at the given version, i.e. an alarm for it would not be stale
+     */
+    public boolean isPending(int timerId, long version) {
+        TimerState state = getState();
+        if (timerId == DIAL_TIMER_ID) {
+            return state.getPhase() == TimerState.PHASE_ARMED
+                    && state.getVersion() == version;
+        }
+        synchronized (mRegistry) {
+            TimerRegistry.Entry e = mRegistry.get(timerId);
+            return e != null && e.getVersion() == version;
+        }
+    }
+
+    /** Returns the number of pending timers, the dial timer included */
+    public int getTimerCount() {
+        getState();
+        synchronized (mRegistry) {
+            return mRegistry.size();
+        }
+    }
+
+    /**
+     * Returns the absolute time when the next timer goes off, in millis since
+     * epoch, or zero if none is pending
+     */
+    public long getNextAlarmTime() {
+        getState();
+        synchronized (mRegistry) {
+            TimerRegistry.Entry first = mRegistry.peek();
+            return first != null ? first.getAlarmTime() : 0;
+        }
+    }
+
+    /**
+     * Registers the timer that goes off first with the scheduler, unless it
+     * already is, or cancels the scheduler if there are no timers. Only run
+     * from the store queue.
+     */
+    private void reschedule() {
+        int id;
+        long alarmTime = 0;
+        long version = 0;
+        synchronized (mRegistry) {
+            TimerRegistry.Entry first = mRegistry.peek();
+            if (first == null) {
+                id = SCHEDULED_NONE;
+            } else {
+                id = first.getId();
+                alarmTime = first.getAlarmTime();
+                version = first.getVersion();
+            }
+        }
+
+        if (id == mScheduledId && alarmTime == mScheduledTime
+                && version == mScheduledVersion) {
+            return;
+        }
+        if (id == SCHEDULED_NONE) {
+            mScheduler.cancel();
+        } else {
+            mScheduler.schedule(id, alarmTime, alarmTime - mAnchor, version);
+        }
+        mScheduledId = id;
+        mScheduledTime = alarmTime;
+        mScheduledVersion = version;
+    }
+
+    /**
+     * Moves the ringing alarm, if any, to DISMISSED. Returns false if no alarm
+     * was ringing.
+     */
+    public boolean dismissAlarm() {
+        TimerState cur = getState();
+        return transition(cur.getVersion(), TimerState.PHASE_RINGING,
+                TimerState.PHASE_DISMISSED) != null;
+    }
+
+    /**
+     * Atomically moves the state from phase "from" to phase "to", if it is
+     * still at the given version and phase. Returns the new state, or null if
+     * the state has moved on.
+     */
+    private TimerState transition(long version, int from, int to) {
+        TimerState cur = getState();
+        if (cur.getVersion() != version || cur.getPhase() != from) {
+            return null;
+        }
+
+        /*
+         * Any concurrent change gives a new version, so there is no point in
+         * retrying if the compare-and-set fails
+         */
+        TimerState next = cur.withPhase(to);
+        if (!mState.compareAndSet(cur, next)) {
+            return null;
+        }
+        persist();
+        return next;
+    }
+
+    /**
+     * Returns the current state
+     * 
+     * Only the first call reads the store, after that this is a single
+     * volatile read.
+     */
+    public TimerState getState() {
+        TimerState state = mState.get();
+        if (state == null) {
+            StateStore.Snapshot stored = mStore.load();
+            state = stored.getState();
+            String timers = stored.getTimers();
+            String timeBase = stored.getTimeBase();
+
+            synchronized (mPersistLock) {
+                if (mState.get() == null) {
+                    // The time base must be in place before the state is seen
+                    loadTimeBase(timeBase);
+                    mState.set(state);
+                    mPersisted = state;
+                    loadTimers(timers);
+                    syncDialTimer();
+                }
+            }
+            state = mState.get();
+        }
+        return state;
+    }
+
+    /**
+     * Fills the registry from timers, which holds the next timer id and then
+     * the timers, as "nextId;" + TimerRegistry.encode()
+     */
+    private void loadTimers(String timers) {
+        synchronized (mRegistry) {
+            int split = timers.indexOf(';');
+            if (split < 0) {
+                return;
+            }
+            try {
+                mNextTimerId = Integer.parseInt(timers.substring(0, split), 36);
+            } catch (NumberFormatException e) {
+                // Recovered from the timers below
+            }
+            int maxId = mRegistry.decode(timers.substring(split + 1));
+            // Never hand out an id that is in use
+            mNextTimerId = Math.max(Math.max(mNextTimerId, maxId + 1),
+                    FIRST_TIMER_ID);
+        }
+    }
+
+    /**
+     * Sets the time base from timeBase, as "anchor;bootCount;elapsed" where
+     * elapsed is elapsedRealtime() when it was saved, or takes a new one from
+     * the wall clock if it was saved in an earlier boot. Called with
+     * mPersistLock held.
+     * 
+     * Without boot counts (before API level 24), elapsed is usually small,
+     * since the time base is taken at boot, so it cannot tell the boots
+     * apart by itself. A time base from an earlier boot is off from the wall
+     * clock by the whole reboot, though, so it must also agree with that. On
+     * such devices, a process that starts after the wall clock was changed
+     * by more than ANCHOR_TOLERANCE_MILLIS takes a new time base too.
+     */
+    private void loadTimeBase(String timeBase) {
+        long elapsed = mClock.elapsedRealtime();
+        int bootCount = mClock.getBootCount();
+
+        String[] parts = timeBase.split(";");
+        if (parts.length == 3) {
+            try {
+                long anchor = Long.parseLong(parts[0]);
+                int savedBootCount = Integer.parseInt(parts[1]);
+                long savedElapsed = Long.parseLong(parts[2]);
+
+                boolean sameBoot;
+                if (bootCount != Clock.BOOT_COUNT_UNKNOWN
+                        && savedBootCount != Clock.BOOT_COUNT_UNKNOWN) {
+                    sameBoot = bootCount == savedBootCount;
+                } else {
+                    // Reset by a reboot, unless this boot has run longer
+                    sameBoot = elapsed >= savedElapsed
+                            && Math.abs(anchor + elapsed
+                                    - mClock.currentTimeMillis())
+                                    <= ANCHOR_TOLERANCE_MILLIS;
+                }
+                if (sameBoot) {
+                    mAnchor = anchor;
+                    return;
+                }
+            } catch (NumberFormatException e) {
+                // Taken again below
+            }
+        }
+        reanchor(elapsed);
+    }
+
+    /**
+     * Takes the time base from the wall clock, and saves it. Called with
+     * mPersistLock held.
+     */
+    private void reanchor(long elapsed) {
+        mAnchor = mClock.currentTimeMillis() - elapsed;
+        mReanchored = true;
+        mStore.saveTimeBase(mAnchor + ";" + mClock.getBootCount() + ";"
+                + elapsed);
+    }
+
+    /** Saves the timers, except the dial timer, which is in the TimerState */
+    private void persistTimers() {
+        mStore.saveTimers(Integer.toString(mNextTimerId, 36) + ";"
+                + mRegistry.encode(FIRST_TIMER_ID));
+    }
+
+    /** Makes the dial timer in the registry match the current state */
+    private void syncDialTimer() {
+        synchronized (mRegistry) {
+            TimerState state = mState.get();
+            if (state.isAlarmSet()) {
+                mRegistry.put(DIAL_TIMER_ID, state.getAlarmTime(),
+                        state.getTimeoutMillis(), state.getVersion());
+            } else {
+                mRegistry.remove(DIAL_TIMER_ID);
+            }
+        }
+    }
+
+    /**
+     * Saves the current state to the store, unless it is already there.
+     * 
+     * Always saves the latest state, and never an older version over a newer
+     * one, however the callers race.
+     */
+    private void persist() {
+        synchronized (mPersistLock) {
+            TimerState state = mState.get();
+            TimerState old = mPersisted;
+            if (old != null && old.getVersion() >= state.getVersion()) {
+                return;
+            }
+            mStore.save(old, state);
+            mPersisted = state;
+            syncDialTimer();
+        }
+    }
+
+    /** Returns true if an alarm is set */
+    public boolean isAlarmSet() {
+        return getState().isAlarmSet();
+    }
+
+    /**
+     * Returns the current time on the time base, in millis since epoch. Only
+     * follows the wall clock as it was when the time base was taken.
+     */
+    public long currentTime() {
+        getState();
+        return mAnchor + mClock.elapsedRealtime();
+    }
+
+    /**
+     * Returns the elapsedRealtime() at which the time base reaches time, for
+     * registering alarms on the monotonic clock
+     */
+    public long toElapsedRealtime(long time) {
+        getState();
+        return time - mAnchor;
+    }
+
+    /** Returns millis left to alarm, or zero if no alarm is set */
+    public long getMillisLeftToAlarm() {
+        TimerState state = getState();
+        if (state.isAlarmSet()) {
+            return state.getAlarmTime() - mAnchor - mClock.elapsedRealtime();
+        } else {
+            return 0;
+        }
+    }
+
+    /**
+     * Returns the absolute time when alarm will trigger, in millis since
+     * epoch on the time base, or zero if no alarm is set
+     */
+    public long getAlarmTime() {
+        TimerState state = getState();
+        if (state.isAlarmSet()) {
+            return state.getAlarmTime();
+        } else {
+            return 0;
+        }
+    }
+}
@@ -39,26 +39,18 @@ package se.erichansander.retrotimer;
 import java.lang.ref.WeakReference;
 
 import android.app.Notification;
-import android.app.NotificationManager;
-import android.app.PendingIntent;
 import android.app.Service;
 import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
-import android.content.res.AssetFileDescriptor;
-import android.content.res.Resources;
-import android.media.AudioManager;
-import android.media.MediaPlayer;
-import android.media.MediaPlayer.OnErrorListener;
 import android.os.Handler;
 import android.os.IBinder;
 import android.os.Message;
+import android.os.SystemClock;
 import android.os.Vibrator;
 import android.preference.PreferenceManager;
-import android.support.v4.app.NotificationCompat;
 import android.telephony.PhoneStateListener;
 import android.telephony.TelephonyManager;
-import android.text.format.DateFormat;
 
 /**
  * Plays alarm and vibrates. Runs as a service so that it can continue to play
@@ -69,30 +61,50 @@ import android.text.format.DateFormat;
  * dismissing.
  * 
  * Receives the ALARM_PLAY_ACTION intent when started.
+ * 
+ * May also be started with ALARM_PREARM_ACTION, PREARM_MILLIS before the alarm.
+ * It then gets everything ready to ring, and goes off by itself, on the
+ * uptime clock, at the alarm time. Should the alarm be cancelled or replaced
+ * before that, disarm() releases it all again.
  */
 public class TimerKlaxon extends Service {
 
-    /*
-     * Comment from the DeskClock app:
-     * 
-     * Volume suggested by media team for in-call alarms.
+    private static final long[] sVibratePattern = new long[] { 500, 500 };
+
+    /** How long before the alarm to get ready to ring */
+    public static final long PREARM_MILLIS = 5 * 1000;
+    /**
+     * The longest to keep the CPU awake for a pre-armed alarm, should it go
+     * off late
      */
-    private static final float IN_CALL_VOLUME = 0.125f;
+    public static final long PREARM_MAX_WAKE_MILLIS = 3 * PREARM_MILLIS;
+    /** Timer id matching no timer, for disarm() */
+    public static final int NO_TIMER_ID = -1;
 
-    private static final long[] sVibratePattern = new long[] { 500, 500 };
+    private static final String DISARM_ACTION = "se.erichansander.retrotimer.KLAXON_DISARM";
+
+    /* True while a TimerKlaxon is pre-armed, so disarm() knows to bother */
+    private static volatile boolean sArmed = false;
 
     // Handles to stuff we need to interact with
     private SharedPreferences mPrefs;
     private Vibrator mVibrator;
-    private MediaPlayer mMediaPlayer;
+    private AudioWorker mAudio;
     private TelephonyManager mTelephonyManager;
-    private AudioFocusHelper mAudioFocusHelper;
 
     private boolean mPlaying = false;
+    private boolean mArmed = false;
+    private long mCreatedElapsed = 0;
+    // The owner we hold WakeLockHolder.ALARM / PREARM for, if any
+    private String mAlarmLockOwner = null;
+    private String mPrearmLockOwner = null;
+    private Notification mTriggeredNotification = null;
     private long mAlarmTime = 0;
+    private long mAlarmVersion = -1;
+    private int mTimerId = TimerEngine.DIAL_TIMER_ID;
     private int mInitialCallState;
 
-    // Internal messages. Handles alarm timeouts.
+    // Internal messages. Handles alarm timeouts, with arg1 the timer id.
     private static final int TIMEOUT_ID = 1000;
 
     private static class TimeoutHandler extends Handler {
@@ -108,7 +120,8 @@ public class TimerKlaxon extends Service {
 
             switch (msg.what) {
             case TIMEOUT_ID:
-                if (k != null) {
+                // Only the timer that is ringing now may be silenced
+                if (k != null && msg.arg1 == k.mTimerId) {
                     k.handleAlarmSilence(k.mAlarmTime);
                     k.stopSelf();
                 }
@@ -119,19 +132,26 @@ public class TimerKlaxon extends Service {
 
     private Handler mHandler = new TimeoutHandler(this);
 
+    /* Sets off a pre-armed alarm */
+    private final Runnable mFire = new Runnable() {
+        public void run() {
+            handleAlarmFire();
+        }
+    };
+
     private PhoneStateListener mPhoneStateListener = new PhoneStateListener() {
         @Override
         public void onCallStateChanged(int state, String ignored) {
-            TinyTracelog.trace("6");
+            TinyTracelog.trace(TraceEvent.KLAXON_CALL_STATE, state);
             /*
              * The user might already be in a call when the alarm fires. When we
              * register onCallStateChanged, we get the initial in-call state
              * which kills the alarm. Check against the initial call state so we
              * don't kill the alarm during a call.
              */
-            if (state != TelephonyManager.CALL_STATE_IDLE
+            if (mPlaying && state != TelephonyManager.CALL_STATE_IDLE
                     && state != mInitialCallState) {
-                TinyTracelog.trace("6.1");
+                TinyTracelog.trace(TraceEvent.KLAXON_CALL_SILENCE);
                 handleAlarmSilence(mAlarmTime);
                 stopSelf();
             }
@@ -140,7 +160,8 @@ public class TimerKlaxon extends Service {
 
     @Override
     public void onCreate() {
-        TinyTracelog.trace("3");
+        TinyTracelog.trace(TraceEvent.KLAXON_CREATE);
+        mCreatedElapsed = SystemClock.elapsedRealtime();
 
         mPrefs = PreferenceManager.getDefaultSharedPreferences(this);
         mVibrator = (Vibrator) getSystemService(Context.VIBRATOR_SERVICE);
@@ -150,28 +171,31 @@ public class TimerKlaxon extends Service {
         mTelephonyManager.listen(mPhoneStateListener,
                 PhoneStateListener.LISTEN_CALL_STATE);
 
-        if (android.os.Build.VERSION.SDK_INT >= 8) {
-            mAudioFocusHelper = new AudioFocusHelper(this);
-        } else {
-            mAudioFocusHelper = null;
-        }
-
-        WakeLockHolder.acquireScreenCpuWakeLock(this);
+        // Audio is set up and played on a thread of its own
+        mAudio = new AudioWorker(this, new Runnable() {
+            public void run() {
+                stop();
+            }
+        });
     }
 
     @Override
     public void onDestroy() {
-        TinyTracelog.trace("9");
+        TinyTracelog.trace(TraceEvent.KLAXON_DESTROY);
 
         stop();
         cancelTimeoutCountdown();
+        disarmSelf();
+        mAudio.quit();
 
         // Cancel the notification
-        NotificationManager nm = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
-        nm.cancel(RetroTimer.NOTIF_TRIGGERED_ID);
+        AndroidNotifier.get(this).cancelTriggered();
 
         mTelephonyManager.listen(mPhoneStateListener, 0);
-        WakeLockHolder.releaseCpuLock();
+        if (mAlarmLockOwner != null) {
+            WakeLockHolder.ALARM.release(mAlarmLockOwner);
+            mAlarmLockOwner = null;
+        }
     }
 
     @Override
@@ -187,44 +211,214 @@ public class TimerKlaxon extends Service {
 
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
-        TinyTracelog.trace("4");
+        TinyTracelog.trace(TraceEvent.KLAXON_START);
 
         // No intent, tell the system not to restart us.
         if (intent == null) {
-            TinyTracelog.trace("4.e");
+            TinyTracelog.trace(TraceEvent.KLAXON_START_NO_INTENT);
             stopSelf();
             return START_NOT_STICKY;
         }
 
+        String action = intent.getAction();
+        if (RetroTimer.ALARM_PREARM_ACTION.equals(action)) {
+            prearm(intent);
+            return START_NOT_STICKY;
+        } else if (DISARM_ACTION.equals(action)) {
+            handleDisarm(intent);
+            return START_NOT_STICKY;
+        }
+
+        // AlarmReceiver got the alarm first, so it is no longer up to us
+        mHandler.removeCallbacks(mFire);
+        mArmed = false;
+        sArmed = false;
+
+        long timeoutMillis = intent.getLongExtra(
+                RetroTimer.ALARM_TIMEOUT_EXTRA, RetroTimer.getState(this)
+                        .getTimeoutMillis());
+        readAlarm(intent);
+
+        // Take over the wake lock hold from AlarmReceiver
+        takeOverAlarmLock(WakeLockHolder.owner(mTimerId, mAlarmVersion));
+
+        startAlarm(timeoutMillis);
+        releasePrearmLock();
+
+        // The shared state was moved to RINGING by AlarmReceiver already
+
+        return START_STICKY;
+    }
+
+    /**
+     * Releases a TimerKlaxon that is pre-armed for anything but the given
+     * timer and version, e.g. since that alarm was cancelled
+     */
+    static void disarm(Context context, int timerId, long version) {
+        if (sArmed) {
+            Intent disarm = new Intent(context, TimerKlaxon.class);
+            disarm.setAction(DISARM_ACTION);
+            disarm.putExtra(RetroTimer.ALARM_TIMER_ID_EXTRA, timerId);
+            disarm.putExtra(RetroTimer.ALARM_VERSION_EXTRA, version);
+            context.startService(disarm);
+        }
+    }
+
+    private void readAlarm(Intent intent) {
+        mAlarmTime = intent.getLongExtra(RetroTimer.ALARM_TIME_EXTRA, 0);
+        mAlarmVersion = intent.getLongExtra(RetroTimer.ALARM_VERSION_EXTRA, -1);
+        mTimerId = intent.getIntExtra(RetroTimer.ALARM_TIMER_ID_EXTRA,
+                TimerEngine.DIAL_TIMER_ID);
+    }
+
+    /**
+     * Gets ready to ring: prepares the alarm sound and the notification, and
+     * sets off the alarm at the alarm time
+     */
+    private void prearm(Intent intent) {
+        // Take over the wake lock hold from AlarmReceiver
+        String owner = WakeLockHolder.owner(
+                intent.getIntExtra(RetroTimer.ALARM_TIMER_ID_EXTRA,
+                        TimerEngine.DIAL_TIMER_ID),
+                intent.getLongExtra(RetroTimer.ALARM_VERSION_EXTRA, -1));
+        if (mPrearmLockOwner != null && !mPrearmLockOwner.equals(owner)) {
+            WakeLockHolder.PREARM.release(mPrearmLockOwner);
+        }
+        mPrearmLockOwner = owner;
+
+        if (mPlaying) {
+            // Late; the alarm went off already
+            releasePrearmLock();
+            return;
+        }
+
+        readAlarm(intent);
+
+        if (mPrefs.getBoolean(RetroTimer.PREF_RING_ON_ALARM, true)) {
+            mAudio.prepare();
+        }
+        mTriggeredNotification = AndroidNotifier.get(this).buildTriggered();
+
+        /*
+         * Go off on the uptime clock, which is monotonic and does not stop as
+         * long as we hold the wake lock
+         */
+        long millisLeft = Math.max(0,
+                RetroTimer.getMillisUntil(this, mAlarmTime));
+        TinyTracelog.trace(TraceEvent.KLAXON_PREARM, millisLeft);
+        mHandler.removeCallbacks(mFire);
+        mHandler.postAtTime(mFire, SystemClock.uptimeMillis() + millisLeft);
+        mArmed = true;
+        sArmed = true;
+    }
+
+    /** Sets off the pre-armed alarm, unless it has gone stale */
+    private void handleAlarmFire() {
+        mArmed = false;
+        sArmed = false;
+
+        TimerState ringing = RetroTimer.triggerAlarm(this, mTimerId,
+                mAlarmVersion, mAlarmTime);
+        if (ringing == null) {
+            TinyTracelog.trace(TraceEvent.KLAXON_PREARM_STALE, mAlarmVersion);
+            disarmSelf();
+            if (!mPlaying) {
+                stopSelf();
+            }
+            return;
+        }
+
+        TinyTracelog.trace(TraceEvent.KLAXON_PREARM_FIRE,
+                -RetroTimer.getMillisUntil(this, mAlarmTime));
+        AlertLatency.mark(this, mAlarmTime, AlertLatency.STAGE_TRIGGER);
+        startAlarm(ringing.getTimeoutMillis());
+        TriggerStats.record(this, mAlarmTime, AlarmStrategy.get().getId());
+        releasePrearmLock();
+    }
+
+    private void handleDisarm(Intent intent) {
+        int timerId = intent.getIntExtra(RetroTimer.ALARM_TIMER_ID_EXTRA,
+                NO_TIMER_ID);
+        long version = intent.getLongExtra(RetroTimer.ALARM_VERSION_EXTRA, -1);
+        if (mArmed && timerId == mTimerId && version == mAlarmVersion) {
+            // Still the alarm we are armed for
+            return;
+        }
+
+        if (mArmed) {
+            TinyTracelog.trace(TraceEvent.KLAXON_DISARM, mTimerId);
+            disarmSelf();
+        }
+        if (!mPlaying) {
+            stopSelf();
+        }
+    }
+
+    /** Releases what prearm() got ready, unless the alarm is ringing */
+    private void disarmSelf() {
+        mHandler.removeCallbacks(mFire);
+        mArmed = false;
+        sArmed = false;
+        mTriggeredNotification = null;
+        if (!mPlaying) {
+            mAudio.stop();
+        }
+        releasePrearmLock();
+    }
+
+    private void releasePrearmLock() {
+        if (mPrearmLockOwner != null) {
+            WakeLockHolder.PREARM.release(mPrearmLockOwner);
+            mPrearmLockOwner = null;
+        }
+    }
+
+    /*
+     * Makes owner the hold on WakeLockHolder.ALARM kept while ringing,
+     * ending any earlier hold of ours
+     */
+    private void takeOverAlarmLock(String owner) {
+        if (mAlarmLockOwner != null && !mAlarmLockOwner.equals(owner)) {
+            WakeLockHolder.ALARM.release(mAlarmLockOwner);
+        }
+        mAlarmLockOwner = owner;
+    }
+
+    /**
+     * Sounds the alarm, puts up the notification and starts TimerAlert, for
+     * the alarm read by readAlarm()
+     */
+    private void startAlarm(long timeoutMillis) {
+        AlertLatency.mark(this, mAlarmTime, AlertLatency.STAGE_KLAXON_CREATE,
+                mCreatedElapsed);
+        AlertLatency.mark(this, mAlarmTime, AlertLatency.STAGE_KLAXON_START);
+
+        // Keep the CPU on while ringing
+        if (mAlarmLockOwner == null) {
+            mAlarmLockOwner = WakeLockHolder.owner(mTimerId, mAlarmVersion);
+            WakeLockHolder.ALARM.acquire(this, mAlarmLockOwner,
+                    WakeLockHolder.maxHoldForAlarm(timeoutMillis));
+        }
+
         boolean ring = mPrefs.getBoolean(RetroTimer.PREF_RING_ON_ALARM, true);
         boolean vibrate = mPrefs.getBoolean(RetroTimer.PREF_VIBRATE_ON_ALARM,
                 true);
-        long timeoutMillis = mPrefs.getLong(
-                RetroTimer.PREF_ALARM_TIMEOUT_MILLIS, 10 * 1000);
-        mAlarmTime = intent.getLongExtra(RetroTimer.ALARM_TIME_EXTRA, 0);
+
+        // Sound first; the rest is not as pressing
+        play(ring, vibrate);
+        startTimeoutCountdown(timeoutMillis);
 
         // Close dialogs and window shade
         sendBroadcast(new Intent(Intent.ACTION_CLOSE_SYSTEM_DIALOGS));
 
-        // Trigger a notification that, when clicked, will dismiss the alarm.
-        Intent notify = new Intent(RetroTimer.ALARM_DISMISS_ACTION);
-        PendingIntent pendingNotify = PendingIntent.getBroadcast(this, 0,
-                notify, 0);
-
-        NotificationCompat.Builder mBuilder = new NotificationCompat.Builder(
-                this).setContentIntent(pendingNotify)
-                .setDefaults(Notification.DEFAULT_LIGHTS).setOngoing(true)
-                .setSmallIcon(R.drawable.ic_stat_alarm_triggered)
-                .setContentTitle(getString(R.string.notify_triggered_label))
-                .setContentText(getString(R.string.notify_triggered_text));
-
         /*
          * Send the notification using the alarm id to easily identify the
          * correct notification.
          */
-        NotificationManager nm = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
-        nm.cancel(RetroTimer.NOTIF_SET_ID);
-        nm.notify(RetroTimer.NOTIF_TRIGGERED_ID, mBuilder.build());
+        AndroidNotifier.get(this).showTriggered(mTimerId,
+                mTriggeredNotification);
+        mTriggeredNotification = null;
+        AlertLatency.mark(this, mAlarmTime, AlertLatency.STAGE_NOTIFIED);
 
         /*
          * launch UI, explicitly stating that this is not due to user action so
@@ -236,17 +430,9 @@ public class TimerKlaxon extends Service {
                 | Intent.FLAG_ACTIVITY_NO_USER_ACTION);
         startActivity(timerAlert);
 
-        play(ring, vibrate);
-        startTimeoutCountdown(timeoutMillis);
-
         // Record the initial call state here so that the new alarm has the
         // newest state.
         mInitialCallState = mTelephonyManager.getCallState();
-
-        // Update the shared state
-        RetroTimer.clearAlarm(this);
-
-        return START_STICKY;
     }
 
     /**
@@ -256,33 +442,14 @@ public class TimerKlaxon extends Service {
      * when the alarm triggered.
      */
     private void handleAlarmSilence(long alarmTime) {
-        TinyTracelog.trace("8");
-
-        // Display notification
-        NotificationManager nm = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
+        TinyTracelog.trace(TraceEvent.KLAXON_SILENCE);
 
-        // Launch the TimerSet activity when clicked
-        Intent viewAlarm = new Intent(this, TimerSet.class);
-        viewAlarm.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
-        PendingIntent pintent = PendingIntent
-                .getActivity(this, 0, viewAlarm, 0);
+        // Update the shared state
+        RetroTimer.silenceAlarm(this, mTimerId, mAlarmVersion);
 
         // Update the notification to indicate that the alert has been
         // silenced.
-        NotificationCompat.Builder mBuilder = new NotificationCompat.Builder(
-                this)
-                .setContentIntent(pintent)
-                .setAutoCancel(true)
-                .setSmallIcon(R.drawable.ic_stat_alarm_triggered)
-                .setContentTitle(getString(R.string.notify_silenced_label))
-                .setContentText(
-                        getString(R.string.notify_silenced_text, DateFormat
-                                .getTimeFormat(this).format(mAlarmTime)));
-        // We have to cancel the original notification since it is in the
-        // ongoing section and we want the "killed" notification to be a plain
-        // notification.
-        nm.cancel(RetroTimer.NOTIF_TRIGGERED_ID);
-        nm.notify(RetroTimer.NOTIF_SILENCED_ID, mBuilder.build());
+        AndroidNotifier.get(this).showSilenced(mAlarmTime);
 
         Intent intent = new Intent(RetroTimer.ALARM_SILENCE_ACTION);
         intent.putExtra(RetroTimer.ALARM_TIME_EXTRA, alarmTime);
@@ -292,68 +459,22 @@ public class TimerKlaxon extends Service {
     }
 
     private void play(boolean ring, boolean vibrate) {
-        TinyTracelog.trace("5");
+        TinyTracelog.trace(TraceEvent.KLAXON_PLAY);
 
         // stop() checks to see if we are already playing.
         stop();
 
         if (ring) {
-            TinyTracelog.trace("5.1");
-            mMediaPlayer = new MediaPlayer();
-            mMediaPlayer.setOnErrorListener(new OnErrorListener() {
-                public boolean onError(MediaPlayer mp, int what, int extra) {
-                    TinyTracelog.trace("5.1.e1");
-                    stop();
-                    return true;
-                }
-            });
-
-            try {
-                /*
-                 * Check if we are in a call. If we are, use the in-call alarm
-                 * resource at a low volume to not disrupt the call.
-                 */
-                if (mTelephonyManager.getCallState() != TelephonyManager.CALL_STATE_IDLE) {
-                    TinyTracelog.trace("5.1.1");
-                    mMediaPlayer.setVolume(IN_CALL_VOLUME, IN_CALL_VOLUME);
-                    setDataSourceFromResource(getResources(), mMediaPlayer,
-                            R.raw.in_call_alarm);
-                } else {
-                    TinyTracelog.trace("5.1.2");
-                    setDataSourceFromResource(getResources(), mMediaPlayer,
-                            R.raw.classic_alarm);
-                }
-            } catch (Exception ex) {
-                // Failed to set data source. Not much we can do to save
-                // the situation though...
-                TinyTracelog.trace("5.1.e2");
-            }
-
-            try {
-                final AudioManager audioManager = (AudioManager) getSystemService(Context.AUDIO_SERVICE);
-                // do not play alarms if stream volume is 0
-                int volume = audioManager.getStreamVolume(AudioManager.STREAM_ALARM);
-                TinyTracelog.trace("5.1.3 " + volume);
-                if (volume != 0) {
-                    mMediaPlayer.setAudioStreamType(AudioManager.STREAM_ALARM);
-                    mMediaPlayer.setLooping(true);
-                    mMediaPlayer.prepare();
-                    if (mAudioFocusHelper != null) {
-                        mAudioFocusHelper.requestFocus();
-                    }
-                    mMediaPlayer.start();
-                }
-            } catch (Exception ex) {
-                // Failed to play ring tone. Not much we can do to save
-                // the situation though...
-                TinyTracelog.trace("5.1.e3");
-            }
+            TinyTracelog.trace(TraceEvent.KLAXON_RING);
+            // Checks the call state and volume, and plays, on the worker
+            mAudio.play(mAlarmTime);
         }
 
-        /* Start the vibrator after everything is ok with the media player */
+        /* Start the vibrator, while the worker gets the sound going */
         if (vibrate) {
-            TinyTracelog.trace("5.2");
+            TinyTracelog.trace(TraceEvent.KLAXON_VIBRATE);
             mVibrator.vibrate(sVibratePattern, 0);
+            AlertLatency.mark(this, mAlarmTime, AlertLatency.STAGE_VIBRATING);
         } else {
             mVibrator.cancel();
         }
@@ -361,16 +482,6 @@ public class TimerKlaxon extends Service {
         mPlaying = true;
     }
 
-    private void setDataSourceFromResource(Resources resources,
-            MediaPlayer player, int res) throws java.io.IOException {
-        AssetFileDescriptor afd = resources.openRawResourceFd(res);
-        if (afd != null) {
-            player.setDataSource(afd.getFileDescriptor(), afd.getStartOffset(),
-                    afd.getLength());
-            afd.close();
-        }
-    }
-
     /**
      * Stops alarm audio and vibration
      */
@@ -379,14 +490,7 @@ public class TimerKlaxon extends Service {
             mPlaying = false;
 
             // Stop audio playing
-            if (mMediaPlayer != null) {
-                mMediaPlayer.stop();
-                if (mAudioFocusHelper != null) {
-                    mAudioFocusHelper.abandonFocus();
-                }
-                mMediaPlayer.release();
-                mMediaPlayer = null;
-            }
+            mAudio.stop();
 
             // Stop vibrator
             mVibrator.cancel();
@@ -398,8 +502,10 @@ public class TimerKlaxon extends Service {
      * day.
      */
     private void startTimeoutCountdown(long timeoutMillis) {
-        mHandler.sendMessageDelayed(mHandler.obtainMessage(TIMEOUT_ID),
-                timeoutMillis);
+        // A new alarm takes over from the one ringing, timeout and all
+        mHandler.removeMessages(TIMEOUT_ID);
+        mHandler.sendMessageDelayed(
+                mHandler.obtainMessage(TIMEOUT_ID, mTimerId, 0), timeoutMillis);
     }
 
     /* Cancels the timeout countdown */
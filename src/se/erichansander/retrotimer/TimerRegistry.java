@@ -0,0 +1,225 @@
+/*
+ * Copyright (C) 2010-2014  Eric Hansander
+ *
+ *  This file is part of Retro Timer.
+ *
+ *  Retro Timer is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Retro Timer is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Retro Timer.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.erichansander.retrotimer;
+
+import java.util.HashMap;
+
+/**
+ * The pending timers, ordered by alarm time
+ *
+ * A binary min-heap keyed on alarm time (ties broken by id), with an index
+ * from timer id to heap slot. Adding, updating and removing a timer are
+ * O(log n), and finding the next one to go off is O(1), so only that one
+ * needs to be registered with the AlarmManager, however many are running.
+ *
+ * Plain Java, and not thread safe; TimerEngine does the locking.
+ */
+final class TimerRegistry {
+
+    /** One pending timer */
+    static final class Entry {
+        final int mId;
+        long mAlarmTime;
+        long mTimeoutMillis;
+        long mVersion;
+        int mSlot;
+
+        Entry(int id) {
+            mId = id;
+        }
+
+        public int getId() {
+            return mId;
+        }
+
+        /** Absolute time when the timer should go off, in millis since epoch */
+        public long getAlarmTime() {
+            return mAlarmTime;
+        }
+
+        /** Max num of millis to ring before silencing automatically */
+        public long getTimeoutMillis() {
+            return mTimeoutMillis;
+        }
+
+        /** Identifies this registration of the timer, see TimerState */
+        public long getVersion() {
+            return mVersion;
+        }
+    }
+
+    private Entry[] mHeap = new Entry[8];
+    private int mSize = 0;
+    private final HashMap<Integer, Entry> mById = new HashMap<Integer, Entry>();
+
+    public int size() {
+        return mSize;
+    }
+
+    /** Returns the timer that goes off first, or null if there are none */
+    public Entry peek() {
+        return mSize > 0 ? mHeap[0] : null;
+    }
+
+    /** Returns the timer with the given id, or null if it is not pending */
+    public Entry get(int id) {
+        return mById.get(id);
+    }
+
+    /** Adds the timer with the given id, or moves it if already pending */
+    public void put(int id, long alarmTime, long timeoutMillis, long version) {
+        Entry e = mById.get(id);
+        if (e == null) {
+            e = new Entry(id);
+            if (mSize == mHeap.length) {
+                Entry[] heap = new Entry[mSize * 2];
+                System.arraycopy(mHeap, 0, heap, 0, mSize);
+                mHeap = heap;
+            }
+            e.mSlot = mSize++;
+            mHeap[e.mSlot] = e;
+            mById.put(id, e);
+        }
+        e.mAlarmTime = alarmTime;
+        e.mTimeoutMillis = timeoutMillis;
+        e.mVersion = version;
+
+        siftDown(siftUp(e.mSlot));
+    }
+
+    /** Removes the timer with the given id. Returns it, or null if none. */
+    public Entry remove(int id) {
+        Entry e = mById.remove(id);
+        if (e == null) {
+            return null;
+        }
+
+        Entry last = mHeap[--mSize];
+        mHeap[mSize] = null;
+        if (last != e) {
+            last.mSlot = e.mSlot;
+            mHeap[e.mSlot] = last;
+            siftDown(siftUp(last.mSlot));
+        }
+        return e;
+    }
+
+    public void clear() {
+        for (int i = 0; i < mSize; i++) {
+            mHeap[i] = null;
+        }
+        mSize = 0;
+        mById.clear();
+    }
+
+    /** Moves the entry at slot up while it goes off before its parent */
+    private int siftUp(int slot) {
+        Entry e = mHeap[slot];
+        while (slot > 0) {
+            int parent = (slot - 1) >>> 1;
+            if (!before(e, mHeap[parent])) {
+                break;
+            }
+            place(mHeap[parent], slot);
+            slot = parent;
+        }
+        place(e, slot);
+        return slot;
+    }
+
+    /** Moves the entry at slot down while a child goes off before it */
+    private void siftDown(int slot) {
+        Entry e = mHeap[slot];
+        while (true) {
+            int child = 2 * slot + 1;
+            if (child >= mSize) {
+                break;
+            }
+            if (child + 1 < mSize && before(mHeap[child + 1], mHeap[child])) {
+                child++;
+            }
+            if (!before(mHeap[child], e)) {
+                break;
+            }
+            place(mHeap[child], slot);
+            slot = child;
+        }
+        place(e, slot);
+    }
+
+    private void place(Entry e, int slot) {
+        mHeap[slot] = e;
+        e.mSlot = slot;
+    }
+
+    private static boolean before(Entry a, Entry b) {
+        return a.mAlarmTime < b.mAlarmTime
+                || (a.mAlarmTime == b.mAlarmTime && a.mId < b.mId);
+    }
+
+    /**
+     * Returns the timers with an id of at least minId, on the compact form
+     * "id,alarmTime,timeout;..." with all numbers in base 36. The order is
+     * that of the heap, so decoding them rebuilds it without reordering.
+     */
+    public String encode(int minId) {
+        StringBuilder s = new StringBuilder(mSize * 24);
+        for (int i = 0; i < mSize; i++) {
+            Entry e = mHeap[i];
+            if (e.mId < minId) {
+                continue;
+            }
+            s.append(Integer.toString(e.mId, 36)).append(',')
+                    .append(Long.toString(e.mAlarmTime, 36)).append(',')
+                    .append(Long.toString(e.mTimeoutMillis, 36)).append(';');
+        }
+        return s.toString();
+    }
+
+    /**
+     * Adds the timers in s, as returned by encode(), with their id as
+     * version. Skips anything that does not parse. Returns the highest id
+     * added, or -1 if none.
+     */
+    public int decode(String s) {
+        int maxId = -1;
+        int start = 0;
+        while (start < s.length()) {
+            int end = s.indexOf(';', start);
+            if (end < 0) {
+                end = s.length();
+            }
+            String[] f = s.substring(start, end).split(",");
+            start = end + 1;
+            if (f.length != 3) {
+                continue;
+            }
+            try {
+                int id = Integer.parseInt(f[0], 36);
+                put(id, Long.parseLong(f[1], 36), Long.parseLong(f[2], 36),
+                        id);
+                maxId = Math.max(maxId, id);
+            } catch (NumberFormatException e) {
+                // skip the broken entry, and keep the rest
+            }
+        }
+        return maxId;
+    }
+}
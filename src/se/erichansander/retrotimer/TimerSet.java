@@ -25,9 +25,11 @@ import android.app.AlertDialog;
 import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
+import android.content.pm.ApplicationInfo;
 import android.media.AudioManager;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.SystemClock;
 import android.os.Vibrator;
 import android.preference.PreferenceManager;
 import android.view.Menu;
@@ -40,15 +42,25 @@ import android.widget.TextView;
 /** Main activity for setting the timer */
 public class TimerSet extends Activity implements TimerSetListener {
 
-    // Interval between redraws of the timer to update time left
-    private static final int UPDATE_INTERVAL_MILLIS = 60 * 1000;
-
     // How long to vibrate when timer dial goes to zero
     private final long mSetAlarmDelayMillis = 750;
 
     // How long to vibrate when timer dial goes to zero
     private final long mZeroVibrateDurationMillis = 200;
 
+    /*
+     * States of a drag session, i.e. the user turning the dial. Any alarm is
+     * cancelled once when the drag starts, and the new one is only set once
+     * the dial has been released for mSetAlarmDelayMillis. In between, the
+     * values only live in the view.
+     */
+    // Not dragging
+    private static final int DRAG_IDLE = 0;
+    // Dial being turned
+    private static final int DRAG_ACTIVE = 1;
+    // Dial released, waiting for delaySetAlarm to set the alarm
+    private static final int DRAG_PENDING_SET = 2;
+
     // Handles to stuff we need to interact with
     private SharedPreferences mPrefs;
     private Vibrator mVibrator;
@@ -60,29 +72,30 @@ public class TimerSet extends Activity implements TimerSetListener {
     private boolean mUserInteracted = false;
     // True when timer dial is at zero
     private boolean mTempAtZero = false;
+    // Current state of the drag session, one of the DRAG_* constants
+    private int mDragState = DRAG_IDLE;
+    // Whether to vibrate at zero, looked up when the drag starts
+    private boolean mVibrateAtZero = true;
+    // True if the dial should turn smoothly, instead of once a minute
+    private boolean mSmoothDial = false;
+    // True if this is a debug build, which shows the debug menu items
+    private boolean mDebuggable = false;
     /*
      * Time left (in millis) that the alarm will be set for, when the
      * delaySetAlarm is triggered
      */
     private long mTimeLeftToBeSet = 0;
 
-    // Handler for updating the TimerView with time remaining
+    // Ticks the TimerView with the time remaining to the alarm
+    private TickScheduler mTicker;
+
+    // Handler for setting the alarm once the dial is released
     private final Handler mHandler = new Handler();
-    private final Runnable runTimeUpdate = new Runnable() {
-        public void run() {
-            mHandler.postDelayed(this, UPDATE_INTERVAL_MILLIS);
-            updateTimeLeft();
-        }
-    };
     private final Runnable delaySetAlarm = new Runnable() {
         public void run() {
-            if (mTimeLeftToBeSet > 0) {
-                RetroTimer.setAlarmDelayed(TimerSet.this, mTimeLeftToBeSet);
-                startUpdatingTimeLeft();
-            } else {
-                RetroTimer.cancelAlarm(TimerSet.this);
-                updateTimeLeft();
-            }
+            mDragState = DRAG_IDLE;
+            RetroTimer.setAlarmDelayed(TimerSet.this, mTimeLeftToBeSet);
+            startUpdatingTimeLeft();
         }
     };
 
@@ -95,13 +108,31 @@ public class TimerSet extends Activity implements TimerSetListener {
 
         PreferenceManager.setDefaultValues(this, R.xml.preferences, false);
 
+        // Only instrument rendering in debug builds
+        mDebuggable = (getApplicationInfo().flags
+                & ApplicationInfo.FLAG_DEBUGGABLE) != 0;
+        FrameStats.setEnabled(mDebuggable);
+
         RetroTimer.initAlarm(this);
+        /*
+         * Have the alarm sounds decoded long before they are needed. Not from
+         * RetroTimer.onCreate(), where the process may have been started for
+         * an alarm, that the decoding would compete with.
+         */
+        AlarmSound.warmUp(this);
 
         setContentView(R.layout.timer_set);
 
         mTimer = (TimerSetView) findViewById(R.id.timer_set_view);
         mTimer.setTimerSetListener(this);
 
+        mTicker = new TickScheduler(this, mTimer,
+                new TickScheduler.Listener() {
+                    public void onTick(long millisLeft) {
+                        updateTimeLeft(millisLeft);
+                    }
+                });
+
         mVolumeZeroWarning = (TextView) findViewById(R.id.volume_zero_warning);
         mVolumeZeroWarning.setOnClickListener(new OnClickListener() {
             public void onClick(View v) {
@@ -114,14 +145,20 @@ public class TimerSet extends Activity implements TimerSetListener {
     protected void onStart() {
         super.onStart();
 
+        mSmoothDial = mPrefs.getBoolean(RetroTimer.PREF_SMOOTH_DIAL, false);
+        mTimer.setContinuous(mSmoothDial);
+
         crashIfMissedAlarm(this);
 
         if (RetroTimer.getMillisLeftToAlarm(this) > 0) {
             startUpdatingTimeLeft();
         } else {
+            // The alarm may have gone off while stopped; nothing to tick for
+            mTicker.stop();
             mTempAtZero = true;
-            updateTimeLeft();
+            updateTimeLeft(0);
         }
+        mTicker.onStart();
     }
 
     @Override
@@ -149,13 +186,12 @@ public class TimerSet extends Activity implements TimerSetListener {
         mUserInteracted = false;
 
         /* Only show the license notice if we haven't already */
-        if (!mPrefs.getBoolean(RetroTimer.PREF_HAVE_SHOWN_LICENSE, false)) {
+        PrefsWriter writer = PrefsWriter.get(this);
+        if (!writer.getBoolean(RetroTimer.PREF_HAVE_SHOWN_LICENSE, false)) {
             showLicenseDialog();
 
             // remember that we have showed the license
-            SharedPreferences.Editor ed = mPrefs.edit();
-            ed.putBoolean(RetroTimer.PREF_HAVE_SHOWN_LICENSE, true);
-            ed.commit();
+            writer.putBoolean(RetroTimer.PREF_HAVE_SHOWN_LICENSE, true);
         }
 
         // Display warning of ringing is on but alarm volume is zero
@@ -168,7 +204,16 @@ public class TimerSet extends Activity implements TimerSetListener {
         }
 
         // Update the time remaining to alarm
-        mTimer.invalidate();
+        mTimer.setFramesPaused(false);
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+
+        // stop turning the dial smoothly while not in front, e.g. if the
+        // screen is turned off
+        mTimer.setFramesPaused(true);
     }
 
     @Override
@@ -176,7 +221,7 @@ public class TimerSet extends Activity implements TimerSetListener {
         super.onStop();
 
         // stop updating the display
-        mHandler.removeCallbacks(runTimeUpdate);
+        mTicker.onStop();
     }
 
     private void showLicenseDialog() {
@@ -188,10 +233,34 @@ public class TimerSet extends Activity implements TimerSetListener {
         builder.create().show();
     }
 
+    /** Shows the rendering stats, and dumps them to the tracelog */
+    private void showFrameStatsDialog() {
+        FrameStats.trace();
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setTitle(R.string.frame_stats_title)
+                .setMessage(FrameStats.getSummary())
+                .setPositiveButton(android.R.string.ok, null);
+        builder.create().show();
+    }
+
+    /** Shows how late the recent alarms went off */
+    private void showTriggerStatsDialog() {
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setTitle(R.string.trigger_stats_title)
+                .setMessage(
+                        TriggerStats.getSummary(this) + "\n"
+                                + AlertLatency.getSummary(this) + "\n"
+                                + WakeLockHolder.getSummary())
+                .setPositiveButton(android.R.string.ok, null);
+        builder.create().show();
+    }
+
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         MenuInflater inflater = getMenuInflater();
         inflater.inflate(R.menu.options_menu, menu);
+        menu.findItem(R.id.show_frame_stats).setVisible(mDebuggable);
+        menu.findItem(R.id.show_trigger_stats).setVisible(mDebuggable);
         return true;
     }
 
@@ -202,37 +271,28 @@ public class TimerSet extends Activity implements TimerSetListener {
             startActivity(new Intent(this, TimerSettings.class));
             return true;
 
+        case R.id.show_frame_stats:
+            showFrameStatsDialog();
+            return true;
+
+        case R.id.show_trigger_stats:
+            showTriggerStatsDialog();
+            return true;
+
         default:
             return super.onOptionsItemSelected(item);
         }
     }
 
+    /**
+     * Ticks the display once a minute, just before each whole minute left to
+     * the alarm, until it goes off
+     */
     private void startUpdatingTimeLeft() {
-        long alarmTime = RetroTimer.getAlarmTime(this);
-        long delay;
-
-        /*
-         * calculate how long after a minute tick the alarm will go off
-         */
-        delay = alarmTime % 60000;
-        /*
-         * subtract a small amount of time, so the view is updated slightly
-         * before the alarm triggers
-         */
-        delay -= 500;
-        /*  */
-        delay -= System.currentTimeMillis() % 60000;
-        /* handle the corner case */
-        if (delay < 0) {
-            /*
-             * if now is within the first 500 millis of a minute, delay will be
-             * negative, so we wait a minute before updating
-             */
-            delay += 60000;
-        }
-
-        mHandler.postDelayed(runTimeUpdate, delay);
-        updateTimeLeft();
+        mTicker.start(
+                SystemClock.elapsedRealtime()
+                        + RetroTimer.getMillisLeftToAlarm(this),
+                TickScheduler.RESOLUTION_MINUTE);
     }
 
     /**
@@ -252,24 +312,19 @@ public class TimerSet extends Activity implements TimerSetListener {
              */
             RetroTimer.handleFatalError(c);
 
-            TinyTracelog.trace("e1 " + System.currentTimeMillis() + ","
-                    + millisLeft);
+            TinyTracelog.trace(TraceEvent.MISSED_ALARM, millisLeft);
             throw new RuntimeException(
                     "alarm never triggered (getMillisLeftToAlarm is negative)\n"
                             + TinyTracelog.getTracelog());
         }
     }
 
-    private void updateTimeLeft() {
-        long millisLeft = RetroTimer.getMillisLeftToAlarm(this);
-
-        crashIfMissedAlarm(this);
-
-        updateTimeLeft(millisLeft);
-    }
-
     private void updateTimeLeft(long millisLeft) {
-        mTimer.setMillisLeft(millisLeft);
+        if (mSmoothDial && millisLeft > 0 && mDragState == DRAG_IDLE) {
+            mTimer.countDownTo(SystemClock.elapsedRealtime() + millisLeft);
+        } else {
+            mTimer.setMillisLeft(millisLeft);
+        }
     }
 
     // Callback functions for the TimerSetView class
@@ -282,13 +337,15 @@ public class TimerSet extends Activity implements TimerSetListener {
      * dial, before releasing it (which sets a new alarm).
      */
     public void onTimerTempValue(long millisLeft) {
-        if (mPrefs.getBoolean(RetroTimer.PREF_ALARM_SET, true)) {
-            RetroTimer.cancelAlarm(this);
+        if (mDragState == DRAG_IDLE) {
+            startDrag();
+        } else if (mDragState == DRAG_PENDING_SET) {
+            // Turned again before the alarm was set, which is already
+            // cancelled, so just keep on dragging
+            mHandler.removeCallbacks(delaySetAlarm);
+            mDragState = DRAG_ACTIVE;
         }
 
-        mHandler.removeCallbacks(runTimeUpdate);
-        mHandler.removeCallbacks(delaySetAlarm);
-
         if (millisLeft <= 0) {
             millisLeft = 0;
 
@@ -296,8 +353,7 @@ public class TimerSet extends Activity implements TimerSetListener {
              * Only vibrate if vibration is turned on, and we are not already at
              * zero
              */
-            if (mPrefs.getBoolean(RetroTimer.PREF_VIBRATE_ON_ALARM, true)
-                    && !mTempAtZero) {
+            if (mVibrateAtZero && !mTempAtZero) {
                 mVibrator.vibrate(mZeroVibrateDurationMillis);
             }
             mTempAtZero = true;
@@ -309,15 +365,41 @@ public class TimerSet extends Activity implements TimerSetListener {
     }
 
     /**
-     * Actually sets the new timer value
+     * Actually sets the new timer value, after a short delay
      * 
-     * If at zero, cancels the alarm instead.
+     * If at zero, there is nothing to do, since the alarm was cancelled when
+     * the drag started.
      */
     public void onTimerSetValue(long millisLeft) {
+        if (mDragState != DRAG_ACTIVE) {
+            // Released without being turned, e.g. a tap
+            return;
+        }
+
         if (millisLeft > 0) {
             mTimeLeftToBeSet = millisLeft;
-            mHandler.removeCallbacks(delaySetAlarm);
+            mDragState = DRAG_PENDING_SET;
             mHandler.postDelayed(delaySetAlarm, mSetAlarmDelayMillis);
+        } else {
+            mDragState = DRAG_IDLE;
         }
     }
+
+    /**
+     * Starts a new drag session. Does all the work that should be done once
+     * per drag, rather than once per touch event.
+     */
+    private void startDrag() {
+        mDragState = DRAG_ACTIVE;
+
+        mTicker.stop();
+        mHandler.removeCallbacks(delaySetAlarm);
+
+        if (RetroTimer.isAlarmSet(this)) {
+            RetroTimer.cancelAlarm(this);
+        }
+
+        mVibrateAtZero = mPrefs.getBoolean(RetroTimer.PREF_VIBRATE_ON_ALARM,
+                true);
+    }
 }
@@ -35,6 +35,8 @@ public class TimerSetView extends TimerView {
 
     private boolean mBeingChanged = false;
     private long mMillisLeftBefore = 0;
+    // System.nanoTime() when the touch event being handled arrived, or zero
+    private long mInputNanos = 0;
 
     public interface TimerSetListener {
         abstract void onTimerTempValue(long millis);
@@ -54,26 +56,18 @@ public class TimerSetView extends TimerView {
     }
 
     private void onTurn(float dx) {
-        final float scale = getContext().getResources().getDisplayMetrics().density;
-
-        float w = this.getWidth() * scale;
-        dx *= scale;
-
         if (mBeingChanged == false) {
             mMillisLeftBefore = mMillisLeft;
             mBeingChanged = true;
         }
 
-        mMillisLeft = mMillisLeftBefore + Math.round((-dx / w) * 15f * 60000f);
-
-        // Round to the closest full minute
-        mMillisLeft = Math.round(mMillisLeft / 60000f) * 60000;
-
-        if (mMillisLeft <= 0) {
-            mMillisLeft = 0;
-        } else if (mMillisLeft > TIMER_MAX_MINS * 60000) {
-            mMillisLeft = TIMER_MAX_MINS * 60000;
+        long millisLeft = DialMath.millisForTurn(mMillisLeftBefore, dx,
+                this.getWidth());
+        if (millisLeft != mMillisLeft && mInputNanos != 0) {
+            // Only a move that turns the dial gets a frame to measure
+            FrameStats.onInput(mInputNanos);
         }
+        mMillisLeft = millisLeft;
 
         mListener.onTimerTempValue(mMillisLeft);
     }
@@ -86,13 +80,19 @@ public class TimerSetView extends TimerView {
 
     @Override
     public boolean onTouchEvent(MotionEvent event) {
+        int action = event.getAction();
+        if (FrameStats.isEnabled() && action == MotionEvent.ACTION_MOVE) {
+            mInputNanos = System.nanoTime();
+        }
+
         boolean retVal = mGestures.onTouchEvent(event);
+        mInputNanos = 0;
 
-        int action = event.getAction();
         if (action == MotionEvent.ACTION_UP
                 || action == MotionEvent.ACTION_CANCEL) {
             // Helper method to detect when scrolling is finished
             onSet();
+            FrameStats.clearInput();
             retVal = true;
         }
 
@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2010-2014  Eric Hansander
+ *
+ *  This file is part of Retro Timer.
+ *
+ *  Retro Timer is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Retro Timer is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Retro Timer.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.erichansander.retrotimer;
+
+/**
+ * Immutable, versioned snapshot of the alarm state
+ *
+ * The current snapshot is held by RetroTimer, and replaced as a whole with
+ * compare-and-set whenever the state changes. Every new snapshot gets a higher
+ * version than the one it replaces, so events that carry the version they were
+ * created for (like the alarm trigger) can tell if they are stale.
+ *
+ * The phases move IDLE -> ARMED -> RINGING -> SILENCED or DISMISSED. Setting
+ * an alarm arms it from any phase, and cancelling it moves ARMED to IDLE.
+ */
+public final class TimerState {
+    /** No alarm set */
+    public static final int PHASE_IDLE = 0;
+    /** Alarm set, and registered with the AlarmManager */
+    public static final int PHASE_ARMED = 1;
+    /** Alarm triggered, and is ringing */
+    public static final int PHASE_RINGING = 2;
+    /** Alarm stopped ringing by itself, without the user dismissing it */
+    public static final int PHASE_SILENCED = 3;
+    /** Alarm dismissed by the user */
+    public static final int PHASE_DISMISSED = 4;
+
+    /** Timeout used if none has been stored */
+    public static final long DEFAULT_TIMEOUT_MILLIS = 10 * 1000;
+
+    private final int mPhase;
+    private final long mVersion;
+    private final long mAlarmTime;
+    private final long mTimeoutMillis;
+
+    public TimerState(int phase, long version, long alarmTime,
+            long timeoutMillis) {
+        mPhase = phase;
+        mVersion = version;
+        mAlarmTime = alarmTime;
+        mTimeoutMillis = timeoutMillis;
+    }
+
+    public int getPhase() {
+        return mPhase;
+    }
+
+    public long getVersion() {
+        return mVersion;
+    }
+
+    /** Is true when an alarm is set, i.e. armed and not yet triggered */
+    public boolean isAlarmSet() {
+        return mPhase == PHASE_ARMED;
+    }
+
+    /** Absolute time when alarm should go off, in millis since epoch */
+    public long getAlarmTime() {
+        return mAlarmTime;
+    }
+
+    /** Max num of millis to play alarm before silencing it automatically */
+    public long getTimeoutMillis() {
+        return mTimeoutMillis;
+    }
+
+    /** Returns the next version of this state, armed at alarmTime */
+    public TimerState armed(long alarmTime, long timeoutMillis) {
+        return new TimerState(PHASE_ARMED, mVersion + 1, alarmTime,
+                timeoutMillis);
+    }
+
+    /**
+     * Returns the next version of this state, in the given phase. The alarm
+     * time is forgotten when going back to idle.
+     */
+    public TimerState withPhase(int phase) {
+        return new TimerState(phase, mVersion + 1, phase == PHASE_IDLE ? 0
+                : mAlarmTime, mTimeoutMillis);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof TimerState)) {
+            return false;
+        }
+        TimerState other = (TimerState) o;
+        return mPhase == other.mPhase && mVersion == other.mVersion
+                && mAlarmTime == other.mAlarmTime
+                && mTimeoutMillis == other.mTimeoutMillis;
+    }
+
+    @Override
+    public int hashCode() {
+        int h = mPhase;
+        h = 31 * h + (int) (mVersion ^ (mVersion >>> 32));
+        h = 31 * h + (int) (mAlarmTime ^ (mAlarmTime >>> 32));
+        h = 31 * h + (int) (mTimeoutMillis ^ (mTimeoutMillis >>> 32));
+        return h;
+    }
+}
@@ -19,9 +19,6 @@
 
 package se.erichansander.retrotimer;
 
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
-
 import android.content.Context;
 import android.graphics.Canvas;
 import android.graphics.Paint;
@@ -29,6 +26,8 @@ import android.graphics.Path;
 import android.graphics.PathMeasure;
 import android.graphics.RectF;
 import android.graphics.Typeface;
+import android.os.SystemClock;
+import android.support.v4.view.ViewCompat;
 import android.util.AttributeSet;
 import android.widget.ImageView;
 
@@ -41,10 +40,17 @@ import android.widget.ImageView;
 public class TimerView extends ImageView {
 
     /** The max number of minutes the countdown can be set to */
-    public static final long TIMER_MAX_MINS = 89;
+    public static final long TIMER_MAX_MINS = DialMath.MAX_MINUTES;
+
+    /*
+     * In continuous mode, the least distance (in pixels) the scale must have
+     * moved before it is worth redrawing the view
+     */
+    private static final float CONTINUOUS_STEP_PX = 0.5f;
 
     private Paint mScalePaint;
     private Path mScalePath;
+    private ScalePath mScaleMeasure;
 
     // variables used for drawing the scale, with correct length
     // and position, etc
@@ -54,6 +60,59 @@ public class TimerView extends ImageView {
     private int mLettersInScale;
     private float mScaleStartOffset;
 
+    /*
+     * The scale strings for all minutes 0..TIMER_MAX_MINS, for the current
+     * scale length. Built in onSizeChanged, so that onDraw does not allocate.
+     */
+    private char[][] mScaleTable = null;
+
+    /*
+     * Position and rotation (in degrees) of each letter of the scale, taken
+     * from the scale path. Each letter is drawn with its own transform, since
+     * drawTextOnPath() is not supported with HW acceleration.
+     */
+    private float[] mLetterX = null;
+    private float[] mLetterY = null;
+    private float[] mLetterAngle = null;
+    private final float[] mPos = new float[2];
+    private final float[] mTan = new float[2];
+    // How far the letters are currently moved from their whole minute places
+    private float mLetterShift = 0;
+
+    /*
+     * State for continuous mode, where the scale moves smoothly while counting
+     * down to mDeadline (in SystemClock.elapsedRealtime() millis), instead of
+     * jumping once per minute.
+     */
+    private boolean mContinuous = false;
+    private boolean mCountingDown = false;
+    private boolean mFramesPaused = false;
+    private boolean mFramePosted = false;
+    private long mDeadline = 0;
+    private long mDrawnMillisLeft = 0;
+    private long mMillisPerStep = 1000;
+
+    /*
+     * Runs once per frame while counting down in continuous mode. Only
+     * redraws the view once the scale has moved far enough to be visible.
+     */
+    private final Runnable mFrameCallback = new Runnable() {
+        public void run() {
+            mFramePosted = false;
+            if (!mContinuous || !mCountingDown) {
+                return;
+            }
+
+            long millisLeft = mDeadline - SystemClock.elapsedRealtime();
+            if (mDrawnMillisLeft - millisLeft >= mMillisPerStep
+                    || millisLeft <= 0) {
+                invalidate();
+            } else {
+                postFrame();
+            }
+        }
+    };
+
     protected long mMillisLeft = 0;
 
     public TimerView(Context context, AttributeSet attrs) {
@@ -64,27 +123,6 @@ public class TimerView extends ImageView {
         mScalePaint.setTypeface(Typeface.MONOSPACE);
         mScalePaint.setAntiAlias(true);
         // set the size in onSizeChanged, when we know how big the view is
-
-        /*
-         * The drawTextOnPath() operation (used below) is not supported with HW
-         * acceleration, so we need to disable it with setLayerType(). However,
-         * that method only exists in API rev 11 and up, so we must be careful.
-         */
-        try {
-            Method method = this.getClass().getMethod("setLayerType",
-                    new Class[] { int.class, Paint.class });
-            method.invoke(this, new Object[] { LAYER_TYPE_SOFTWARE, null });
-        } catch (NoSuchMethodException e) {
-            // setLayerType() does not exist, which should mean that API rev is
-            // less than 11 and we won't have problems with HW acceleration
-            // anyway
-        } catch (IllegalArgumentException e) {
-            e.printStackTrace();
-        } catch (IllegalAccessException e) {
-            e.printStackTrace();
-        } catch (InvocationTargetException e) {
-            e.printStackTrace();
-        }
     }
 
     /** Re-calculate all drawing related variables when view size changes */
@@ -114,95 +152,177 @@ public class TimerView extends ImageView {
         mScalePath.addArc(new RectF(sidePadding, middle - ovalHeight, w
                 - sidePadding, middle + ovalHeight), 150, -120);
 
-        mPathLen = (new PathMeasure(mScalePath, false)).getLength();
+        mScaleMeasure = new MeasuredScalePath(mScalePath);
+        mPathLen = mScaleMeasure.getLength();
 
-        mLettersInScale = Math.round(mPathLen / mLetterWidth);
-        if (mLettersInScale % 2 == 0)
-            mLettersInScale -= 1;
-        mScaleStartOffset = (mPathLen - mLetterWidth * mLettersInScale) / 2
-                - mLetterWidth / (12 * mDensityScale);
+        mLettersInScale = DialMath.lettersInScale(mPathLen, mLetterWidth);
+        mScaleStartOffset = DialMath.scaleStartOffset(mPathLen, mLetterWidth,
+                mLettersInScale, mDensityScale);
+
+        mScaleTable = DialMath.buildScaleTable(mLettersInScale);
+
+        mLetterX = new float[mLettersInScale];
+        mLetterY = new float[mLettersInScale];
+        mLetterAngle = new float[mLettersInScale];
+        layoutLetters(mScaleStartOffset);
+        mLetterShift = 0;
+
+        mMillisPerStep = Math.max(1,
+                (long) (60000 * CONTINUOUS_STEP_PX / mLetterWidth));
+    }
+
+    /**
+     * Places the letters of the scale along the scale path, with the first
+     * letter starting startOffset into the path.
+     */
+    private void layoutLetters(float startOffset) {
+        DialMath.layoutLetters(mScaleMeasure, startOffset, mLetterWidth,
+                mLetterX, mLetterY, mLetterAngle, mPos, mTan);
     }
 
     /** Sets the amount of millis left to zero, and redraws the timer */
     public void setMillisLeft(long millis) {
+        mCountingDown = false;
         mMillisLeft = millis;
 
         invalidate(); // redraw the egg
     }
 
-    @Override
-    protected void onDraw(Canvas canvas) {
-        super.onDraw(canvas);
+    /**
+     * Makes the timer follow a countdown to deadline, given in
+     * SystemClock.elapsedRealtime() millis. In continuous mode, the scale is
+     * then moved smoothly, frame by frame, until it reaches zero or
+     * setMillisLeft() is called.
+     */
+    public void countDownTo(long deadline) {
+        mCountingDown = true;
+        mDeadline = deadline;
 
-        int minute = Math.round(mMillisLeft / 60000f);
+        invalidate();
+    }
+
+    /**
+     * Turns continuous mode on or off. When off, the scale is only moved in
+     * whole minutes.
+     */
+    public void setContinuous(boolean continuous) {
+        mContinuous = continuous;
 
-        canvas.drawTextOnPath(getScaleString(mLettersInScale, minute),
-                mScalePath, mScaleStartOffset, 0, mScalePaint);
+        invalidate();
     }
 
     /**
-     * Returns a string of given length, centered on given minute
-     * 
-     * E.g. length = 5 and centerMinute 8 would give: ....1
-     * 
-     * @precond length must be odd
+     * Stops (or restarts) the per-frame updates in continuous mode, e.g. when
+     * the activity is paused or the screen turned off.
      */
-    private String getScaleString(int length, int centerMinute) {
-        /*
-         * The string might become slightly longer then length while we are
-         * building it, so add some spare. It will be trimmed before we return
-         * it.
-         */
-        StringBuilder s = new StringBuilder(length + 3);
-        int bef = 0;
-        int aft = 0;
-
-        // Start with the center minute number
-        if (centerMinute % 5 == 0) {
-            s.append(centerMinute);
-            if (centerMinute > 5)
-                bef++;
-        } else {
-            s.append(".");
+    public void setFramesPaused(boolean paused) {
+        mFramesPaused = paused;
+        if (!paused) {
+            invalidate();
         }
+    }
 
-        /*
-         * work our way outward, in both the positive and negative directions
-         * from centerMinute
-         */
-        for (int i = 1; i <= length / 2; i++) {
-            int min;
-
-            min = centerMinute - i;
-            if (min < 0) {
-                s.insert(0, " ");
-            } else if (min % 5 == 0) {
-                s.insert(0, min);
-                if (min > 5)
-                    bef++;
-            } else {
-                s.insert(0, ".");
-            }
-            bef++;
-
-            min = centerMinute + i;
-            if (min > TIMER_MAX_MINS) {
-                s.append(" ");
-            } else if (min % 5 == 0) {
-                s.append(min);
-                if (min > 5)
-                    aft++;
+    @Override
+    protected void onWindowVisibilityChanged(int visibility) {
+        super.onWindowVisibilityChanged(visibility);
+
+        if (visibility == VISIBLE) {
+            // Restarts the frame updates, if needed
+            invalidate();
+        }
+    }
+
+    /** Asks for mFrameCallback to be run on the next frame, if needed */
+    private void postFrame() {
+        if (!mFramePosted && !mFramesPaused
+                && getWindowVisibility() == VISIBLE) {
+            mFramePosted = true;
+            ViewCompat.postOnAnimation(this, mFrameCallback);
+        }
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        long startNanos = FrameStats.isEnabled() ? System.nanoTime() : 0;
+
+        super.onDraw(canvas);
+
+        if (mScaleTable == null) {
+            // Not laid out yet
+            return;
+        }
+
+        boolean smooth = false;
+        if (mCountingDown) {
+            mMillisLeft = mDeadline - SystemClock.elapsedRealtime();
+            if (mMillisLeft <= 0) {
+                mMillisLeft = 0;
+                mCountingDown = false;
             } else {
-                s.append(".");
+                smooth = mContinuous;
             }
-            aft++;
+        }
+
+        float exactMinute = mMillisLeft / 60000f;
+        int minute = Math.round(exactMinute);
+        if (minute < 0) {
+            minute = 0;
+        } else if (minute > TIMER_MAX_MINS) {
+            minute = (int) TIMER_MAX_MINS;
         }
 
         /*
-         * since the two-digit numbers (10, 15...) may have caused the
-         * centerMinute not to be precisely in the middle, we need to center it,
-         * using substring.
+         * In continuous mode, move the letters from their whole minute places
+         * by the fraction of a minute, so the scale turns smoothly
          */
-        return s.substring(bef - length / 2, bef - length / 2 + length);
+        float shift = smooth ? (minute - exactMinute) * mLetterWidth : 0;
+        if (shift != mLetterShift) {
+            layoutLetters(mScaleStartOffset + shift);
+            mLetterShift = shift;
+        }
+
+        drawScale(canvas, mScaleTable[minute]);
+
+        mDrawnMillisLeft = mMillisLeft;
+        if (smooth) {
+            postFrame();
+        }
+
+        if (startNanos != 0) {
+            FrameStats.onDrawn(startNanos, System.nanoTime());
+        }
+    }
+
+    /** Draws the letters of scale, one by one, where layoutLetters put them */
+    private void drawScale(Canvas canvas, char[] scale) {
+        float halfLetter = mLetterWidth / 2;
+
+        for (int i = 0; i < mLettersInScale; i++) {
+            if (scale[i] == ' ') {
+                continue;
+            }
+            canvas.save();
+            canvas.translate(mLetterX[i], mLetterY[i]);
+            canvas.rotate(mLetterAngle[i]);
+            canvas.drawText(scale, i, 1, -halfLetter, 0, mScalePaint);
+            canvas.restore();
+        }
+    }
+
+    /** A ScalePath backed by the scale's android.graphics.Path */
+    private static class MeasuredScalePath implements ScalePath {
+        private final PathMeasure mMeasure;
+
+        public MeasuredScalePath(Path path) {
+            mMeasure = new PathMeasure(path, false);
+        }
+
+        public float getLength() {
+            return mMeasure.getLength();
+        }
+
+        public void getPosTan(float distance, float[] pos, float[] tan) {
+            mMeasure.getPosTan(distance, pos, tan);
+        }
     }
 }
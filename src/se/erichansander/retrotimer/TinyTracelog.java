@@ -19,37 +19,119 @@
 
 package se.erichansander.retrotimer;
 
+import java.nio.ByteBuffer;
+
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.preference.PreferenceManager;
 
 /**
- * Single string tracelog
+ * Tiny binary tracelog
+ *
+ * Keeps the last CAPACITY trace points in a TraceRing of fixed-width
+ * records, held in a memory mapped file so that the trace survives the process
+ * being killed. Appending a trace point is constant time and does not allocate.
+ * The records are only decoded into a readable string by getTracelog().
+ *
+ * Trace points are identified by the event ids in TraceEvent, and take up to
+ * two primitive args, so that tracing never has to build strings.
  */
 public class TinyTracelog {
+    /** Key of the string tracelog that older versions kept in the prefs */
     public static final String PREFID_TINYTRACELOG = "tinytracelog";
 
-    private static SharedPreferences sPrefs = null;
+    /** Number of records kept before the oldest ones are overwritten */
+    public static final int CAPACITY = TraceRing.CAPACITY;
 
-    public static void init(Context c) {
-        if (sPrefs == null) {
-            sPrefs = PreferenceManager.getDefaultSharedPreferences(c);
+    private static final String FILENAME = "tinytracelog";
+
+    private static volatile TraceRing sRing = null;
+
+    /**
+     * Maps the tracelog file. Until then, trace points cost a null check and
+     * are dropped.
+     */
+    public static synchronized void init(Context c) {
+        if (sRing != null) {
+            return;
         }
+
+        ByteBuffer buffer = MappedFile.map(c, FILENAME, TraceRing.SIZE);
+        sRing = new TraceRing(buffer);
+
+        /*
+         * Get rid of the string tracelog left by older versions. Off the main
+         * thread, since this is called from Application.onCreate().
+         */
+        final SharedPreferences prefs = PreferenceManager
+                .getDefaultSharedPreferences(c);
+        PrefsWriter.get(c).runInOrder(new Runnable() {
+            public void run() {
+                if (prefs.contains(PREFID_TINYTRACELOG)) {
+                    prefs.edit().remove(PREFID_TINYTRACELOG).commit();
+                }
+            }
+        });
     }
 
     public static synchronized void clear() {
-        SharedPreferences.Editor ed = sPrefs.edit();
-        ed.putString(PREFID_TINYTRACELOG, "");
-        ed.commit();
+        if (sRing == null) {
+            return;
+        }
+        sRing.clear();
+    }
+
+    /**
+     * Writes the trace out to disk. Not needed for the trace to survive the
+     * process being killed, only to make it survive a device crash.
+     *
+     * Does I/O, so should only be called from a background thread.
+     */
+    public static void sync() {
+        TraceRing ring = sRing;
+        if (ring != null) {
+            MappedFile.sync(ring.getBuffer());
+        }
     }
 
-    public static synchronized void trace(String msg) {
-        SharedPreferences.Editor ed = sPrefs.edit();
-        ed.putString(PREFID_TINYTRACELOG, getTracelog() + msg + ";");
-        ed.commit();
+    /** Appends a trace point without args. See TraceEvent for event ids. */
+    public static void trace(int event) {
+        if (sRing != null) {
+            append(event, 0, 0, 0);
+        }
+    }
+
+    /** Appends a trace point with one arg */
+    public static void trace(int event, long arg) {
+        if (sRing != null) {
+            append(event, 1, arg, 0);
+        }
     }
 
-    public static String getTracelog() {
-        return sPrefs.getString(PREFID_TINYTRACELOG, "");
+    /** Appends a trace point with two args */
+    public static void trace(int event, long arg0, long arg1) {
+        if (sRing != null) {
+            append(event, 2, arg0, arg1);
+        }
+    }
+
+    /** Writes one record into the ring buffer. Does not allocate. */
+    private static synchronized void append(int event, int numArgs,
+            long arg0, long arg1) {
+        if (sRing == null) {
+            return;
+        }
+        sRing.append(System.currentTimeMillis(), event, numArgs, arg0, arg1);
+    }
+
+    /**
+     * Decodes the records in the ring buffer, oldest first, into a string on
+     * the form "code@timestamp args;code@timestamp args;..."
+     */
+    public static synchronized String getTracelog() {
+        if (sRing == null) {
+            return "";
+        }
+        return sRing.decode();
     }
 }
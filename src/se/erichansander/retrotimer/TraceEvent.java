@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2010-2014  Eric Hansander
+ *
+ *  This file is part of Retro Timer.
+ *
+ *  Retro Timer is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Retro Timer is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Retro Timer.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.erichansander.retrotimer;
+
+/**
+ * Event ids for the TinyTracelog
+ *
+ * Each id is the packed form of the dotted trace code shown in the decoded
+ * tracelog: one byte per part, most significant byte first, with the high bit
+ * of a part set for the "e" (error) codes. E.g. 0x05018200 is "5.1.e2".
+ */
+public final class TraceEvent {
+    /** 1: Alarm set by the user, arg: minutes to alarm */
+    public static final int ALARM_SET = 0x01000000;
+    /**
+     * 1.1: Timer added alongside the dial timer, args: timer id, minutes to
+     * alarm
+     */
+    public static final int TIMER_ADDED = 0x01010000;
+
+    /** 2.1: AlarmReceiver got BOOT_COMPLETED */
+    public static final int RECEIVER_BOOT = 0x02010000;
+    /**
+     * 2.1.1: Alarms restored after boot, arg: millis from BOOT_COMPLETED until
+     * registered and on disk
+     */
+    public static final int RECEIVER_BOOT_RESTORED = 0x02010100;
+    /** 2.2: AlarmReceiver got ALARM_TRIGGER_ACTION, arg: alarm time */
+    public static final int RECEIVER_TRIGGER = 0x02020000;
+    /**
+     * 2.2.e: The triggered alarm was stale, and ignored, args: version of the
+     * alarm, current version
+     */
+    public static final int RECEIVER_TRIGGER_STALE = 0x02028000;
+    /**
+     * 2.3: Alarm trigger delta, args: millis after the alarm time (negative if
+     * early), AlarmStrategy id
+     */
+    public static final int RECEIVER_TRIGGER_DELTA = 0x02030000;
+
+    /** 2.4: AlarmReceiver got ALARM_PREARM_ACTION, arg: alarm time */
+    public static final int RECEIVER_PREARM = 0x02040000;
+    /**
+     * 2.4.e: The pre-arm wakeup was stale, and ignored, args: timer id,
+     * version of the alarm
+     */
+    public static final int RECEIVER_PREARM_STALE = 0x02048000;
+
+    /** 2.5: AlarmReceiver got TIME_SET, the wall clock was changed */
+    public static final int RECEIVER_TIME_CHANGED = 0x02050000;
+
+    /** 3: TimerKlaxon created */
+    public static final int KLAXON_CREATE = 0x03000000;
+    /** 4: TimerKlaxon started */
+    public static final int KLAXON_START = 0x04000000;
+    /** 4.e: TimerKlaxon started without intent */
+    public static final int KLAXON_START_NO_INTENT = 0x04800000;
+
+    /** 5: Starting to play the alarm */
+    public static final int KLAXON_PLAY = 0x05000000;
+    /** 5.1: Alarm should ring */
+    public static final int KLAXON_RING = 0x05010000;
+    /** 5.1.1: Ringing with the in-call alarm */
+    public static final int KLAXON_RING_IN_CALL = 0x05010100;
+    /** 5.1.2: Ringing with the classic alarm */
+    public static final int KLAXON_RING_CLASSIC = 0x05010200;
+    /** 5.1.3: Alarm volume looked up, arg: stream volume */
+    public static final int KLAXON_VOLUME = 0x05010300;
+    /** 5.1.e1: MediaPlayer reported an error, args: what, extra */
+    public static final int KLAXON_MEDIA_ERROR = 0x05018100;
+    /** 5.1.e2: Failed to set the data source */
+    public static final int KLAXON_DATA_SOURCE_FAILED = 0x05018200;
+    /** 5.1.e3: Failed to start playing */
+    public static final int KLAXON_PLAY_FAILED = 0x05018300;
+    /**
+     * 5.1.4: Ringing with decoded PCM, args: number of frames, millis to load
+     * and start it
+     */
+    public static final int KLAXON_RING_PCM = 0x05010400;
+    /**
+     * 5.1.e4: Could not play the decoded PCM, falling back to MediaPlayer,
+     * args: samples written, AudioTrack state
+     */
+    public static final int KLAXON_PCM_FAILED = 0x05018400;
+    /** 5.2: Alarm should vibrate */
+    public static final int KLAXON_VIBRATE = 0x05020000;
+
+    /** 6: Call state changed, arg: call state */
+    public static final int KLAXON_CALL_STATE = 0x06000000;
+    /** 6.1: Alarm silenced by a call */
+    public static final int KLAXON_CALL_SILENCE = 0x06010000;
+
+    /** 7.1: AlarmReceiver got ALARM_SILENCE_ACTION */
+    public static final int RECEIVER_SILENCE = 0x07010000;
+    /** 7.2: AlarmReceiver got ALARM_DISMISS_ACTION */
+    public static final int RECEIVER_DISMISS = 0x07020000;
+
+    /** 8: Alarm silenced after timing out */
+    public static final int KLAXON_SILENCE = 0x08000000;
+    /** 9: TimerKlaxon destroyed */
+    public static final int KLAXON_DESTROY = 0x09000000;
+
+    /** 10.1: Frame stats, onDraw micros, args: p50, p95 */
+    public static final int FRAME_DRAW_P50_P95 = 0x0A010000;
+    /** 10.2: Frame stats, onDraw micros, args: p99, number of frames */
+    public static final int FRAME_DRAW_P99_COUNT = 0x0A020000;
+    /** 10.3: Frame stats, touch to drawn micros, args: p50, p95 */
+    public static final int FRAME_INPUT_P50_P95 = 0x0A030000;
+    /** 10.4: Frame stats, touch to drawn micros, args: p99, number of frames */
+    public static final int FRAME_INPUT_P99_COUNT = 0x0A040000;
+
+    /** 11: AlarmStrategy selected, arg: strategy id */
+    public static final int ALARM_STRATEGY = 0x0B000000;
+    /**
+     * 11.e1: The strategy failed to register the alarm, and fell back to
+     * setExact(), arg: strategy id
+     */
+    public static final int ALARM_STRATEGY_FAILED = 0x0B810000;
+
+    /** 12: Alarm sound decoded to PCM, args: number of samples, millis */
+    public static final int SOUND_DECODED = 0x0C000000;
+    /** 12.e: Failed to decode an alarm sound to PCM */
+    public static final int SOUND_DECODE_FAILED = 0x0C800000;
+
+    /** 13: TimerKlaxon got ready for the alarm, arg: millis left */
+    public static final int KLAXON_PREARM = 0x0D000000;
+    /**
+     * 13.1: The pre-armed TimerKlaxon went off, arg: millis after alarm time
+     * (negative if early)
+     */
+    public static final int KLAXON_PREARM_FIRE = 0x0D010000;
+    /** 13.2: The pre-armed TimerKlaxon was released, arg: timer id */
+    public static final int KLAXON_DISARM = 0x0D020000;
+    /** 13.e: The pre-armed alarm was stale when it went off, arg: version */
+    public static final int KLAXON_PREARM_STALE = 0x0D800000;
+
+    /** 14: Wake lock released, args: WakeLockHolder id, millis held */
+    public static final int WAKELOCK_RELEASED = 0x0E000000;
+    /**
+     * 14.e: A wake lock hold ran to its max hold time, args: WakeLockHolder
+     * id, holds left
+     */
+    public static final int WAKELOCK_TIMEOUT = 0x0E800000;
+
+    /** e1: The alarm never triggered, arg: millis left to alarm */
+    public static final int MISSED_ALARM = 0x81000000;
+
+    private TraceEvent() {
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2010-2014  Eric Hansander
+ *
+ *  This file is part of Retro Timer.
+ *
+ *  Retro Timer is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Retro Timer is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Retro Timer.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.erichansander.retrotimer;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The ring buffer behind TinyTracelog
+ *
+ * Keeps the last CAPACITY trace points as fixed-width records in a
+ * ByteBuffer, which TinyTracelog backs with a memory mapped file. Appending a
+ * record is constant time and does not allocate.
+ *
+ * Plain Java, so it can be used off-device too. Not thread safe; TinyTracelog
+ * does the locking.
+ */
+final class TraceRing {
+    /** Number of records kept before the oldest ones are overwritten */
+    public static final int CAPACITY = 127;
+
+    private static final int MAGIC = 0x52547431;
+    private static final int MAX_ARGS = 2;
+    /* How the parts of a trace code are packed, see TraceEvent */
+    private static final int ERROR_FLAG = 0x80;
+    private static final int PART_MASK = 0x7f;
+
+    /*
+     * Header layout: int magic, int capacity, long number of records written
+     * since last clear()
+     */
+    private static final int HEADER_MAGIC = 0;
+    private static final int HEADER_CAPACITY = 4;
+    private static final int HEADER_COUNT = 8;
+    private static final int HEADER_SIZE = 32;
+
+    /*
+     * Record layout: long timestamp, int code, int number of args, and
+     * MAX_ARGS long args
+     */
+    private static final int RECORD_TIME = 0;
+    private static final int RECORD_CODE = 8;
+    private static final int RECORD_NUM_ARGS = 12;
+    private static final int RECORD_ARGS = 16;
+    private static final int RECORD_SIZE = 32;
+
+    /** Number of bytes the buffer must hold */
+    public static final int SIZE = HEADER_SIZE + CAPACITY * RECORD_SIZE;
+
+    private final ByteBuffer mBuffer;
+
+    /**
+     * Uses the records already in buffer, if it holds a valid ring, or
+     * starts a new one
+     */
+    public TraceRing(ByteBuffer buffer) {
+        mBuffer = buffer;
+
+        if (mBuffer.getInt(HEADER_MAGIC) != MAGIC
+                || mBuffer.getInt(HEADER_CAPACITY) != CAPACITY) {
+            mBuffer.putInt(HEADER_MAGIC, MAGIC);
+            mBuffer.putInt(HEADER_CAPACITY, CAPACITY);
+            mBuffer.putLong(HEADER_COUNT, 0);
+        }
+    }
+
+    public ByteBuffer getBuffer() {
+        return mBuffer;
+    }
+
+    public void clear() {
+        mBuffer.putLong(HEADER_COUNT, 0);
+    }
+
+    /** Writes one record, overwriting the oldest one if full */
+    public void append(long time, int event, int numArgs, long arg0,
+            long arg1) {
+        long count = mBuffer.getLong(HEADER_COUNT);
+        int rec = HEADER_SIZE + (int) (count % CAPACITY) * RECORD_SIZE;
+
+        mBuffer.putLong(rec + RECORD_TIME, time);
+        mBuffer.putInt(rec + RECORD_CODE, event);
+        mBuffer.putInt(rec + RECORD_NUM_ARGS, numArgs);
+        mBuffer.putLong(rec + RECORD_ARGS, arg0);
+        mBuffer.putLong(rec + RECORD_ARGS + 8, arg1);
+        mBuffer.putLong(HEADER_COUNT, count + 1);
+    }
+
+    /**
+     * Decodes the records, oldest first, into a string on the form
+     * "code@timestamp args;code@timestamp args;..."
+     */
+    public String decode() {
+        long count = mBuffer.getLong(HEADER_COUNT);
+        long first = Math.max(0, count - CAPACITY);
+        StringBuilder s = new StringBuilder((int) (count - first) * 24);
+
+        for (long n = first; n < count; n++) {
+            int rec = HEADER_SIZE + (int) (n % CAPACITY) * RECORD_SIZE;
+
+            int code = mBuffer.getInt(rec + RECORD_CODE);
+            for (int shift = 24; shift >= 0; shift -= 8) {
+                int part = (code >>> shift) & 0xff;
+                if (part == 0) {
+                    break;
+                }
+                if (shift < 24) {
+                    s.append('.');
+                }
+                if ((part & ERROR_FLAG) != 0) {
+                    s.append('e');
+                }
+                if ((part & PART_MASK) != 0) {
+                    s.append(part & PART_MASK);
+                }
+            }
+
+            s.append('@').append(mBuffer.getLong(rec + RECORD_TIME));
+
+            int numArgs = mBuffer.getInt(rec + RECORD_NUM_ARGS);
+            for (int a = 0; a < numArgs && a < MAX_ARGS; a++) {
+                s.append(a == 0 ? ' ' : ',');
+                s.append(mBuffer.getLong(rec + RECORD_ARGS + a * 8));
+            }
+            s.append(';');
+        }
+
+        return s.toString();
+    }
+}
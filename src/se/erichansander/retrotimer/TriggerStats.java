@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2010-2014  Eric Hansander
+ *
+ *  This file is part of Retro Timer.
+ *
+ *  Retro Timer is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Retro Timer is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Retro Timer.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.erichansander.retrotimer;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.BatteryManager;
+import android.os.PowerManager;
+
+/**
+ * How late the alarms go off, for the last CAPACITY alarms
+ *
+ * Each time an alarm goes off, its lateness in millis is recorded, tagged
+ * with whether the screen was on, whether the device was charging, and which
+ * AlarmStrategy registered it. The samples are kept in a ring of fixed-width
+ * records in a memory mapped file, like the TinyTracelog, so that they add
+ * up across processes and reboots. getSummary() gives the p50 and p99
+ * lateness, overall and per tag.
+ */
+final class TriggerStats {
+    /** Number of alarms kept before the oldest ones are overwritten */
+    public static final int CAPACITY = 256;
+
+    private static final String FILENAME = "triggerstats";
+    private static final int MAGIC = 0x52545331;
+
+    /* Bits of the record flags */
+    private static final int FLAG_SCREEN_ON = 0x01;
+    private static final int FLAG_CHARGING = 0x02;
+
+    /*
+     * Header layout: int magic, int capacity, long number of records written
+     */
+    private static final int HEADER_MAGIC = 0;
+    private static final int HEADER_CAPACITY = 4;
+    private static final int HEADER_COUNT = 8;
+    private static final int HEADER_SIZE = 16;
+
+    /*
+     * Record layout: long alarm time, int lateness in millis (negative if
+     * early), byte flags, byte strategy id, and two spare bytes
+     */
+    private static final int RECORD_ALARM_TIME = 0;
+    private static final int RECORD_LATENESS = 8;
+    private static final int RECORD_FLAGS = 12;
+    private static final int RECORD_STRATEGY = 13;
+    private static final int RECORD_SIZE = 16;
+
+    private static final int FILE_SIZE = HEADER_SIZE + CAPACITY * RECORD_SIZE;
+
+    private static ByteBuffer sBuffer = null;
+
+    private TriggerStats() {
+    }
+
+    private static void init(Context c) {
+        if (sBuffer != null) {
+            return;
+        }
+
+        sBuffer = MappedFile.map(c, FILENAME, FILE_SIZE);
+        if (sBuffer.getInt(HEADER_MAGIC) != MAGIC
+                || sBuffer.getInt(HEADER_CAPACITY) != CAPACITY) {
+            sBuffer.putInt(HEADER_MAGIC, MAGIC);
+            sBuffer.putInt(HEADER_CAPACITY, CAPACITY);
+            sBuffer.putLong(HEADER_COUNT, 0);
+        }
+    }
+
+    /**
+     * Records that the alarm at alarmTime, registered by the given
+     * AlarmStrategy, went off now. Looks up the device state, so call it right
+     * away when the alarm is received.
+     */
+    public static synchronized void record(Context c, long alarmTime,
+            int strategyId) {
+        long lateness = -RetroTimer.getMillisUntil(c, alarmTime);
+        int flags = 0;
+        if (isScreenOn(c)) {
+            flags |= FLAG_SCREEN_ON;
+        }
+        if (isCharging(c)) {
+            flags |= FLAG_CHARGING;
+        }
+
+        init(c);
+        long count = sBuffer.getLong(HEADER_COUNT);
+        int rec = HEADER_SIZE + (int) (count % CAPACITY) * RECORD_SIZE;
+        sBuffer.putLong(rec + RECORD_ALARM_TIME, alarmTime);
+        sBuffer.putInt(rec + RECORD_LATENESS, (int) Math.max(
+                Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, lateness)));
+        sBuffer.put(rec + RECORD_FLAGS, (byte) flags);
+        sBuffer.put(rec + RECORD_STRATEGY, (byte) strategyId);
+        sBuffer.putLong(HEADER_COUNT, count + 1);
+    }
+
+    private static boolean isScreenOn(Context c) {
+        PowerManager pm = (PowerManager) c
+                .getSystemService(Context.POWER_SERVICE);
+        return pm.isScreenOn();
+    }
+
+    private static boolean isCharging(Context c) {
+        // The battery broadcast is sticky, so this just reads the last one
+        Intent battery = c.getApplicationContext().registerReceiver(null,
+                new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        return battery != null
+                && battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+    }
+
+    /**
+     * Returns a human readable summary of the lateness of the recorded
+     * alarms, for debugging
+     */
+    public static synchronized String getSummary(Context c) {
+        init(c);
+        long count = sBuffer.getLong(HEADER_COUNT);
+        int n = (int) Math.min(count, CAPACITY);
+        int[] lateness = new int[n];
+        int[] flags = new int[n];
+        int[] strategy = new int[n];
+        for (int i = 0; i < n; i++) {
+            int rec = HEADER_SIZE + i * RECORD_SIZE;
+            lateness[i] = sBuffer.getInt(rec + RECORD_LATENESS);
+            flags[i] = sBuffer.get(rec + RECORD_FLAGS);
+            strategy[i] = sBuffer.get(rec + RECORD_STRATEGY);
+        }
+
+        StringBuilder s = new StringBuilder();
+        s.append("Lateness of the last ").append(n).append(" alarms\n\n");
+        summarize(s, "All", lateness, flags, 0, 0, strategy, 0);
+        summarize(s, "Screen on", lateness, flags, FLAG_SCREEN_ON,
+                FLAG_SCREEN_ON, strategy, 0);
+        summarize(s, "Screen off", lateness, flags, FLAG_SCREEN_ON, 0,
+                strategy, 0);
+        summarize(s, "Charging", lateness, flags, FLAG_CHARGING,
+                FLAG_CHARGING, strategy, 0);
+        summarize(s, "On battery", lateness, flags, FLAG_CHARGING, 0,
+                strategy, 0);
+        summarize(s, "set", lateness, flags, 0, 0, strategy,
+                AlarmStrategy.STRATEGY_SET);
+        summarize(s, "setExact", lateness, flags, 0, 0, strategy,
+                AlarmStrategy.STRATEGY_EXACT);
+        summarize(s, "setAlarmClock", lateness, flags, 0, 0, strategy,
+                AlarmStrategy.STRATEGY_ALARM_CLOCK);
+        return s.toString();
+    }
+
+    /**
+     * Appends the lateness percentiles of the samples whose flags match value
+     * under mask, and that were registered by the given strategy (or any, if
+     * zero). Skips groups without samples.
+     */
+    private static void summarize(StringBuilder s, String label,
+            int[] lateness, int[] flags, int mask, int value, int[] strategy,
+            int strategyId) {
+        int[] sorted = new int[lateness.length];
+        int n = 0;
+        for (int i = 0; i < lateness.length; i++) {
+            if ((flags[i] & mask) == value
+                    && (strategyId == 0 || strategy[i] == strategyId)) {
+                sorted[n++] = lateness[i];
+            }
+        }
+        if (n == 0) {
+            return;
+        }
+        Arrays.sort(sorted, 0, n);
+
+        s.append(label).append(": p50 ").append(percentile(sorted, n, 50))
+                .append(" ms, p99 ").append(percentile(sorted, n, 99))
+                .append(" ms, max ").append(sorted[n - 1]).append(" ms (")
+                .append(n).append(" alarms)\n");
+    }
+
+    /** Returns the given percentile of the n first, sorted, samples */
+    static int percentile(int[] sorted, int n, int percentile) {
+        int rank = (int) Math.ceil(percentile / 100.0 * n);
+        return sorted[Math.max(rank, 1) - 1];
+    }
+}
@@ -36,41 +36,200 @@
 
 package se.erichansander.retrotimer;
 
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
 import android.content.Context;
 import android.os.PowerManager;
+import android.os.SystemClock;
 
 /**
- * Hold a wakelock that can be acquired in the AlarmReceiver and released in the
- * TimerAlert activity.
+ * Named wake locks, that are held on behalf of owners, each for a limited time
+ * 
+ * Each holder wraps one wake lock, held while any owner holds it. An owner
+ * holds it from its acquire() until its release(), or at most until the max
+ * hold time given to its latest acquire() has passed, should the release()
+ * never come. A hold that runs out is counted as timed out and traced, so
+ * leaks show up instead of draining the battery until the process dies, and
+ * a late release() for it is ignored, so it cannot end the hold of another
+ * owner.
+ * 
+ * An owner is a string, for the alarms the one from owner(), so that a hold
+ * taken by AlarmReceiver can be released by TimerKlaxon.
  * 
- * This file is borrowed almost without modification from the DeskClock app
- * included with Android.
+ * Each holder also keeps how many times, and for how long in total, it has
+ * been held. See getSummary().
+ * 
+ * The idea of holding a wakelock from the AlarmReceiver until the TimerAlert
+ * is up is borrowed from the DeskClock app included with Android.
  */
 class WakeLockHolder {
 
-    private static final String TAG = "WakeLockHolder";
+    /**
+     * While ringing; from AlarmReceiver until TimerKlaxon is done. Keeps the
+     * CPU on. The screen is turned on by the window flags of TimerAlert, since
+     * a partial wake lock cannot.
+     */
+    public static final WakeLockHolder ALARM = new WakeLockHolder(1, "alarm",
+            PowerManager.PARTIAL_WAKE_LOCK);
+    /** While TimerKlaxon is pre-armed; keeps the CPU, but not the screen, on */
+    public static final WakeLockHolder PREARM = new WakeLockHolder(2,
+            "prearm", PowerManager.PARTIAL_WAKE_LOCK);
+
+    private static final WakeLockHolder[] sHolders = new WakeLockHolder[] {
+            ALARM, PREARM };
 
-    private static PowerManager.WakeLock sCpuWakeLock;
+    /*
+     * How much longer than the alarm timeout to keep the ALARM lock, for
+     * starting up and wrapping up
+     */
+    private static final long ALARM_GRACE_MILLIS = 30 * 1000;
+
+    private final int mId;
+    private final String mName;
+    private final int mFlags;
+    private PowerManager.WakeLock mLock = null;
+
+    // All in SystemClock.elapsedRealtime() millis
+    // The deadline of each owner's hold
+    private final HashMap<String, Long> mHolds = new HashMap<String, Long>();
+    private long mHeldSince = 0;
+    private long mDeadline = 0;
+
+    // Accounting
+    private long mAcquisitions = 0;
+    private long mTimeouts = 0;
+    private long mTotalHeldMillis = 0;
+    private long mLongestHeldMillis = 0;
+
+    private WakeLockHolder(int id, String name, int flags) {
+        mId = id;
+        mName = name;
+        mFlags = flags;
+    }
 
-    public static void acquireScreenCpuWakeLock(Context context) {
-        // this check basically ensures no nesting of WakeLocks, even though
-        // setReferenceCounted() is left at default true.
-        if (sCpuWakeLock != null) {
+    /**
+     * Returns the longest to hold the ALARM lock for an alarm that rings for
+     * at most timeoutMillis
+     */
+    public static long maxHoldForAlarm(long timeoutMillis) {
+        return timeoutMillis + ALARM_GRACE_MILLIS;
+    }
+
+    /** Returns the owner of a hold for the alarm of a timer and version */
+    public static String owner(int timerId, long version) {
+        return timerId + ":" + version;
+    }
+
+    /**
+     * Holds the lock for owner, acquiring it if no one else holds it. The
+     * hold ends after maxHoldMillis, at the latest. Acquiring again for the
+     * same owner moves its deadline, but is still one hold.
+     */
+    public synchronized void acquire(Context context, String owner,
+            long maxHoldMillis) {
+        long now = SystemClock.elapsedRealtime();
+        expireOverdue(now);
+
+        if (mLock == null) {
+            PowerManager pm = (PowerManager) context.getApplicationContext()
+                    .getSystemService(Context.POWER_SERVICE);
+            mLock = pm.newWakeLock(mFlags, "RetroTimer:" + mName);
+            // The holds are counted here, along with the time held
+            mLock.setReferenceCounted(false);
+        }
+
+        if (mHolds.isEmpty()) {
+            mHeldSince = now;
+            mDeadline = now;
+            mAcquisitions++;
+        }
+        mHolds.put(owner, now + maxHoldMillis);
+        mDeadline = Math.max(mDeadline, now + maxHoldMillis);
+        // Restarts the timeout of the lock
+        mLock.acquire(mDeadline - now);
+    }
+
+    /**
+     * Ends the hold of owner, releasing the lock if no one else holds it.
+     * Does nothing if owner holds nothing, e.g. since the hold timed out.
+     */
+    public synchronized void release(String owner) {
+        long now = SystemClock.elapsedRealtime();
+        expireOverdue(now);
+        if (mHolds.remove(owner) == null || !mHolds.isEmpty()) {
             return;
         }
 
-        PowerManager pm = (PowerManager) context
-                .getSystemService(Context.POWER_SERVICE);
-        sCpuWakeLock = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK
-                | PowerManager.ACQUIRE_CAUSES_WAKEUP
-                | PowerManager.ON_AFTER_RELEASE, TAG);
-        sCpuWakeLock.acquire();
+        if (mLock.isHeld()) {
+            mLock.release();
+        }
+        endHold(now);
+    }
+
+    /* Ends the holds that have run to their deadlines */
+    private void expireOverdue(long now) {
+        if (mHolds.isEmpty()) {
+            return;
+        }
+
+        Iterator<Map.Entry<String, Long>> it = mHolds.entrySet().iterator();
+        while (it.hasNext()) {
+            if (now >= it.next().getValue()) {
+                it.remove();
+                mTimeouts++;
+                TinyTracelog.trace(TraceEvent.WAKELOCK_TIMEOUT, mId,
+                        mHolds.size());
+            }
+        }
+        if (mHolds.isEmpty()) {
+            // The lock timed out by itself, at the last deadline
+            endHold(mDeadline);
+        }
+    }
+
+    private void endHold(long end) {
+        long held = end - mHeldSince;
+        TinyTracelog.trace(TraceEvent.WAKELOCK_RELEASED, mId, held);
+        mTotalHeldMillis += held;
+        mLongestHeldMillis = Math.max(mLongestHeldMillis, held);
     }
 
-    public static void releaseCpuLock() {
-        if (sCpuWakeLock != null) {
-            sCpuWakeLock.release();
-            sCpuWakeLock = null;
+    /** Returns true if the lock is held */
+    public synchronized boolean isHeld() {
+        expireOverdue(SystemClock.elapsedRealtime());
+        return !mHolds.isEmpty();
+    }
+
+    /**
+     * Returns a human readable summary of how each lock has been held in this
+     * process, for debugging
+     */
+    public static String getSummary() {
+        StringBuilder s = new StringBuilder();
+        s.append("Wake locks\n\n");
+        for (WakeLockHolder h : sHolders) {
+            h.summarize(s);
+        }
+        return s.toString();
+    }
+
+    private synchronized void summarize(StringBuilder s) {
+        long now = SystemClock.elapsedRealtime();
+        expireOverdue(now);
+
+        long total = mTotalHeldMillis;
+        if (!mHolds.isEmpty()) {
+            total += now - mHeldSince;
+        }
+        s.append(mName).append(": ").append(mAcquisitions).append(" holds, ")
+                .append(total).append(" ms in total, longest ")
+                .append(mLongestHeldMillis).append(" ms, ").append(mTimeouts)
+                .append(" timed out");
+        if (!mHolds.isEmpty()) {
+            s.append(", held now (").append(mHolds.size()).append(" owners)");
         }
+        s.append('\n');
     }
 }